@@ -0,0 +1,253 @@
+package com.quest.voiceover.modules.database;
+
+import com.quest.voiceover.modules.database.corpus.DialogCorpus;
+import com.quest.voiceover.modules.database.corpus.FuzzySearchMode;
+import com.quest.voiceover.modules.database.corpus.FuzzySearchOptions;
+import com.quest.voiceover.utility.TextUtility;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import lombok.With;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Offline build step that turns an authored dialogs database into the file the plugin
+ * downloads. Run through {@code ./gradlew compileDatabase -Pinput=<db> [-Poutput=<db>]}.
+ *
+ * <p>Line texts are cleaned the same way the plugin cleans in-game text before a lookup, so
+ * stray tags and doubled spaces no longer push lines onto the fuzzy path. Identical rows are
+ * dropped, and rows are grouped by quest in their authored order, so each quest's lines sit
+ * together on disk while conversations stay contiguous for the conversation lookahead. The
+ * result gets the lookup index and statistics from {@link DatabaseOptimizer}, is vacuumed,
+ * and is loaded back into a {@link DialogCorpus} to report sizes and lookup latency.
+ */
+public final class DatabaseCompiler {
+
+    private static final String AUTHORED_TABLE = "dialogs_authored";
+    private static final int BENCHMARK_SAMPLES = 2000;
+    private static final double BENCHMARK_THRESHOLD = 0.70;
+
+    private DatabaseCompiler() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args[0].isEmpty()) {
+            System.err.println("Usage: DatabaseCompiler <input.db> [output.db]");
+            System.exit(2);
+        }
+
+        Path input = Path.of(args[0]);
+        Path output = args.length > 1 && !args[1].isEmpty()
+            ? Path.of(args[1])
+            : input.resolveSibling(input.getFileName().toString().replaceFirst("\\.db$", "") + ".compiled.db");
+
+        long startTime = System.nanoTime();
+        Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+
+        CompileStats stats;
+        try (Connection connection = SqliteConnections.open(output)) {
+            stats = rewriteDialogs(connection);
+        }
+        DatabaseOptimizer.optimize(output);
+        try (Connection connection = SqliteConnections.open(output);
+             Statement statement = connection.createStatement()) {
+            statement.execute("VACUUM");
+        }
+        long compileMs = (System.nanoTime() - startTime) / 1_000_000;
+
+        printReport(input, output, stats, compileMs);
+    }
+
+    private static CompileStats rewriteDialogs(Connection connection) throws SQLException {
+        List<Row> authored = readRows(connection);
+
+        // Cleaning is the only per-row work worth spreading over the cores
+        List<Row> cleaned = authored.parallelStream()
+            .map(row -> row.withText(row.getText() == null ? null : TextUtility.cleanForMatching(row.getText())))
+            .collect(Collectors.toList());
+
+        Set<Row> seen = new HashSet<>();
+        List<Row> kept = new ArrayList<>();
+        int cleanedTexts = 0;
+        for (int index = 0; index < cleaned.size(); index++) {
+            Row row = cleaned.get(index);
+            if (seen.add(row)) {
+                kept.add(row);
+                if (!Objects.equals(row.getText(), authored.get(index).getText())) {
+                    cleanedTexts++;
+                }
+            }
+        }
+        kept.sort(Comparator.comparing(Row::getQuest, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparingLong(Row::getRowid));
+
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            String createTable = queryCreateTable(connection);
+            List<String> createIndexes = queryCreateIndexes(connection);
+
+            statement.execute("ALTER TABLE dialogs RENAME TO " + AUTHORED_TABLE);
+            statement.execute(createTable);
+            statement.execute("CREATE TEMP TABLE compiled_order (source_rowid INTEGER PRIMARY KEY, position INTEGER UNIQUE, text TEXT)");
+
+            try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO compiled_order (position, source_rowid, text) VALUES (?, ?, ?)")) {
+                for (int position = 0; position < kept.size(); position++) {
+                    insert.setInt(1, position);
+                    insert.setLong(2, kept.get(position).getRowid());
+                    insert.setString(3, kept.get(position).getText());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+
+            statement.execute("UPDATE " + AUTHORED_TABLE + " SET text = "
+                + "(SELECT text FROM compiled_order WHERE source_rowid = " + AUTHORED_TABLE + ".rowid) "
+                + "WHERE rowid IN (SELECT source_rowid FROM compiled_order)");
+            statement.execute("INSERT INTO dialogs SELECT authored.* FROM compiled_order "
+                + "JOIN " + AUTHORED_TABLE + " authored ON authored.rowid = compiled_order.source_rowid "
+                + "ORDER BY compiled_order.position");
+            statement.execute("DROP TABLE " + AUTHORED_TABLE);
+            statement.execute("DROP TABLE compiled_order");
+            for (String createIndex : createIndexes) {
+                statement.execute(createIndex);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+
+        return new CompileStats(authored.size(), kept.size(), cleaned.size() - kept.size(), cleanedTexts);
+    }
+
+    private static List<Row> readRows(Connection connection) throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                 "SELECT rowid, character, quest, uri, text FROM dialogs ORDER BY rowid");
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rows.add(new Row(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3),
+                    resultSet.getString(4), resultSet.getString(5)));
+            }
+        }
+        return rows;
+    }
+
+    private static String queryCreateTable(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                 "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'dialogs'");
+             ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("No dialogs table in the input database");
+            }
+            return resultSet.getString(1);
+        }
+    }
+
+    /**
+     * The authored indexes on the dialogs table, recreated on the compiled table. Automatic
+     * indexes have no SQL and come back with the table definition.
+     */
+    private static List<String> queryCreateIndexes(Connection connection) throws SQLException {
+        List<String> createIndexes = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                 "SELECT sql FROM sqlite_master WHERE type = 'index' AND tbl_name = 'dialogs' AND sql IS NOT NULL");
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                createIndexes.add(resultSet.getString(1));
+            }
+        }
+        return createIndexes;
+    }
+
+    private static void printReport(Path input, Path output, CompileStats stats, long compileMs)
+        throws SQLException, IOException {
+        System.out.printf("Compiled %s -> %s in %d ms%n", input.getFileName(), output.getFileName(), compileMs);
+        System.out.printf("  rows:      %d authored, %d kept, %d duplicates dropped, %d texts cleaned%n",
+            stats.getAuthoredRows(), stats.getKeptRows(), stats.getDuplicateRows(), stats.getCleanedTexts());
+        System.out.printf("  file size: %d KiB -> %d KiB%n", Files.size(input) / 1024, Files.size(output) / 1024);
+
+        try (Connection connection = SqliteConnections.open(output)) {
+            long loadStart = System.nanoTime();
+            DialogCorpus corpus = DialogCorpus.load(connection);
+            long loadMs = (System.nanoTime() - loadStart) / 1_000_000;
+            System.out.printf("  corpus:    %d lines for %d characters, loaded in %d ms (%d KiB heap, %d KiB off-heap)%n",
+                corpus.size(), corpus.characterCount(), loadMs, corpus.heapBytes() / 1024, corpus.offHeapBytes() / 1024);
+
+            List<Row> samples = sampleRows(connection);
+            FuzzySearchOptions options = new FuzzySearchOptions(
+                BENCHMARK_THRESHOLD, FuzzySearchMode.TRIGRAM_INDEX, Integer.MAX_VALUE, null);
+
+            long exactStart = System.nanoTime();
+            for (Row sample : samples) {
+                corpus.findExact(sample.getCharacter(), sample.getText());
+            }
+            long exactNanos = System.nanoTime() - exactStart;
+
+            long fuzzyStart = System.nanoTime();
+            for (Row sample : samples) {
+                corpus.findBestMatch(sample.getCharacter(), withoutLastWord(sample.getText()), options);
+            }
+            long fuzzyNanos = System.nanoTime() - fuzzyStart;
+
+            int count = Math.max(1, samples.size());
+            System.out.printf("  lookups:   exact %.1f us, fuzzy %.1f us on average over %d lines%n",
+                exactNanos / 1000.0 / count, fuzzyNanos / 1000.0 / count, samples.size());
+        }
+    }
+
+    private static List<Row> sampleRows(Connection connection) throws SQLException {
+        List<Row> rows = readRows(connection);
+        rows.removeIf(row -> row.getCharacter() == null || row.getText() == null);
+        List<Row> samples = new ArrayList<>();
+        Random random = new Random(0);
+        for (int index = 0; index < BENCHMARK_SAMPLES && !rows.isEmpty(); index++) {
+            samples.add(rows.get(random.nextInt(rows.size())));
+        }
+        return samples;
+    }
+
+    private static String withoutLastWord(String text) {
+        int lastSpace = text.lastIndexOf(' ');
+        return lastSpace > 0 ? text.substring(0, lastSpace) : text;
+    }
+
+    /**
+     * A dialogs row as far as compiling is concerned. Two rows are duplicates when everything
+     * but the rowid matches.
+     */
+    @Value
+    @With
+    @EqualsAndHashCode(exclude = "rowid")
+    private static class Row {
+        long rowid;
+        String character;
+        String quest;
+        String uri;
+        String text;
+    }
+
+    @Value
+    private static class CompileStats {
+        int authoredRows;
+        int keptRows;
+        int duplicateRows;
+        int cleanedTexts;
+    }
+}
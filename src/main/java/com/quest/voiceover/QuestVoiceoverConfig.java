@@ -1,5 +1,6 @@
 package com.quest.voiceover;
 
+import com.quest.voiceover.modules.database.corpus.FuzzySearchMode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import net.runelite.api.Client;
@@ -108,6 +109,14 @@ public interface QuestVoiceoverConfig extends Config
 	)
 	String displaySettings = "displaySettings";
 
+	@ConfigSection(
+			name = "Matching",
+			description = "Dialog matching options",
+			position = 40,
+			closedByDefault = true
+	)
+	String matchingSettings = "matchingSettings";
+
 	@Range(min = 1, max = 100)
 	@ConfigItem(
 			keyName = "volume",
@@ -229,4 +238,29 @@ public interface QuestVoiceoverConfig extends Config
 	{
 		return true;
 	}
+
+	@ConfigItem(
+			keyName = "fuzzySearchMode",
+			name = "Fuzzy Search",
+			description = "How near matches are found when dialog text differs from the voiced transcript. BK-tree is built in the background on first use.",
+			section = matchingSettings,
+			position = 41
+	)
+	default FuzzySearchMode fuzzySearchMode()
+	{
+		return FuzzySearchMode.TRIGRAM_INDEX;
+	}
+
+	@Range(min = 100, max = 100000)
+	@ConfigItem(
+			keyName = "parallelScanThreshold",
+			name = "Parallel Scan Threshold",
+			description = "Speakers with at least this many voiced lines have fuzzy scans split across a few background threads.",
+			section = matchingSettings,
+			position = 42
+	)
+	default int parallelScanThreshold()
+	{
+		return 2000;
+	}
 }
@@ -8,9 +8,16 @@ import com.quest.voiceover.features.voiceover.overlay.VoiceoverOverlayMouseListe
 import com.quest.voiceover.features.VoiceoverHandler;
 import com.quest.voiceover.modules.audio.AudioDuckingManager;
 import com.quest.voiceover.modules.audio.AudioManager;
+import com.quest.voiceover.modules.cache.LookupResultCache;
+import com.quest.voiceover.modules.cache.UnvoicedLineCache;
+import com.quest.voiceover.modules.database.DatabaseExecutor;
 import com.quest.voiceover.modules.database.DatabaseManager;
 import com.quest.voiceover.modules.database.DatabaseVersionManager;
+import com.quest.voiceover.modules.database.LookupExecutor;
+import com.quest.voiceover.modules.database.corpus.FuzzySearchMode;
+import com.quest.voiceover.modules.database.corpus.ParallelScanner;
 import com.quest.voiceover.modules.dialog.DialogManager;
+import com.quest.voiceover.modules.quest.QuestStateManager;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.ChatMessageType;
 import net.runelite.api.Client;
@@ -18,6 +25,7 @@ import net.runelite.api.GameState;
 import net.runelite.api.events.*;
 import net.runelite.api.widgets.InterfaceID;
 import net.runelite.client.config.ConfigManager;
+import net.runelite.client.events.ConfigChanged;
 import net.runelite.client.eventbus.Subscribe;
 import net.runelite.client.input.MouseManager;
 import net.runelite.client.plugins.Plugin;
@@ -32,7 +40,6 @@ import javax.inject.Inject;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.util.Set;
-import java.util.concurrent.ScheduledExecutorService;
 
 @Slf4j
 @PluginDescriptor(name = "Quest Voiceover")
@@ -45,10 +52,22 @@ public class QuestVoiceoverPlugin extends Plugin {
     private OkHttpClient okHttpClient;
 
     @Inject
-    private ScheduledExecutorService executor;
+    private DatabaseManager databaseManager;
 
     @Inject
-    private DatabaseManager databaseManager;
+    private DatabaseExecutor databaseExecutor;
+
+    @Inject
+    private ParallelScanner parallelScanner;
+
+    @Inject
+    private UnvoicedLineCache unvoicedLineCache;
+
+    @Inject
+    private LookupResultCache lookupResultCache;
+
+    @Inject
+    private LookupExecutor lookupExecutor;
 
     @Inject
     private AudioManager audioManager;
@@ -68,6 +87,9 @@ public class QuestVoiceoverPlugin extends Plugin {
     @Inject
     private DialogManager dialogManager;
 
+    @Inject
+    private QuestStateManager questStateManager;
+
     @Inject
     private ClientToolbar clientToolbar;
 
@@ -86,6 +108,7 @@ public class QuestVoiceoverPlugin extends Plugin {
     private QuestVoiceoverPanel panel;
     private NavigationButton navigationButton;
     private String playerName;
+    private boolean dialogWasOpen;
     private VoiceoverOverlayMouseListener voiceoverMouseListener;
 
     @Override
@@ -104,14 +127,19 @@ public class QuestVoiceoverPlugin extends Plugin {
         voiceoverMouseListener = new VoiceoverOverlayMouseListener(voiceoverOverlay);
         mouseManager.registerMouseListener(voiceoverMouseListener);
 
-        executor.submit(this::initializeDatabase);
+        databaseExecutor.execute(this::initializeDatabase);
         log.info("Quest Voiceover plugin started");
     }
 
     @Override
     protected void shutDown() throws Exception {
         audioDuckingManager.restore();
+        lookupExecutor.shutDown();
+        databaseExecutor.shutDown();
         databaseManager.closeConnection();
+        parallelScanner.shutDown();
+        log.debug("Lookup result cache: {} hits, {} misses", lookupResultCache.getHits(), lookupResultCache.getMisses());
+        log.debug("Dialog matches: {} exact, {} fuzzy", voiceoverHandler.getExactMatchCount(), voiceoverHandler.getFuzzyMatchCount());
         clientToolbar.removeNavigation(navigationButton);
         overlayManager.remove(voiceoverOverlay);
         mouseManager.unregisterMouseListener(voiceoverMouseListener);
@@ -131,7 +159,7 @@ public class QuestVoiceoverPlugin extends Plugin {
     @Subscribe
     public void onMenuOptionClicked(MenuOptionClicked event) {
         if (event.getMenuOption().equals("Continue")) {
-            voiceoverHandler.stopVoiceover();
+            voiceoverHandler.stopCurrentLine();
         }
     }
 
@@ -148,8 +176,10 @@ public class QuestVoiceoverPlugin extends Plugin {
 
     @Subscribe
     public void onWidgetClosed(WidgetClosed event) {
+        // Switching speakers closes one dialog widget and opens another, so the conversation
+        // itself is only over once no dialog is left open (see onGameTick)
         if (isDialogWidget(event.getGroupId())) {
-            voiceoverHandler.stopVoiceover();
+            voiceoverHandler.stopCurrentLine();
         }
 
         if (event.getGroupId() == InterfaceID.QUEST_LIST) {
@@ -160,10 +190,28 @@ public class QuestVoiceoverPlugin extends Plugin {
     @Subscribe
     public void onGameStateChanged(GameStateChanged event) {
         if (event.getGameState() == GameState.LOGGED_IN) {
+            questStateManager.invalidate();
             changelogHandler.checkForUpdate();
         }
     }
 
+    @Subscribe
+    public void onVarbitChanged(VarbitChanged event) {
+        questStateManager.invalidate();
+    }
+
+    @Subscribe
+    public void onConfigChanged(ConfigChanged event) {
+        if (!Constants.PLUGIN_CONFIG_GROUP.equals(event.getGroup())) {
+            return;
+        }
+
+        if ("fuzzySearchMode".equals(event.getKey())) {
+            unvoicedLineCache.clear();
+            databaseExecutor.execute(this::buildBkTreesIfSelected);
+        }
+    }
+
     @Subscribe
     public void onGameTick(GameTick event) {
         questListIndicatorHandler.onGameTick();
@@ -175,6 +223,11 @@ public class QuestVoiceoverPlugin extends Plugin {
             log.debug("Stopping voiceover - dialog closed");
             audioManager.stopImmediately();
         }
+
+        if (dialogWasOpen && !dialogOpen) {
+            voiceoverHandler.stopVoiceover();
+        }
+        dialogWasOpen = dialogOpen;
     }
 
     private boolean isPlayerMoving() {
@@ -192,13 +245,52 @@ public class QuestVoiceoverPlugin extends Plugin {
         return configManager.getConfig(QuestVoiceoverConfig.class);
     }
 
+    /**
+     * Serves voiceovers from the installed database right away and only then checks for a
+     * newer version, which is swapped in once it is ready. Only a fresh install waits for
+     * the download. When another client sharing the directory installed the newer version
+     * while this one waited for it, that file is picked up instead.
+     */
     private void initializeDatabase() {
-        DatabaseVersionManager.prepareDatabaseSource(okHttpClient);
+        if (!DatabaseVersionManager.isDatabaseInstalled()) {
+            DatabaseVersionManager.prepareDatabaseSource(okHttpClient);
+            openDatabase();
+            return;
+        }
+
+        openDatabase();
+        String loadedVersion = DatabaseVersionManager.getDatabaseEtag();
+        DatabaseVersionManager.PreparedDatabase update = DatabaseVersionManager.fetchUpdate(okHttpClient);
+        if (update != null) {
+            databaseManager.installUpdate(update);
+        } else {
+            databaseManager.reloadIfReplaced();
+        }
+
+        if (!DatabaseVersionManager.getDatabaseEtag().equals(loadedVersion)) {
+            onDatabaseReady();
+        }
+    }
+
+    private void openDatabase() {
         databaseManager.initializeConnection();
+        databaseManager.loadVoicedCharacters();
+        databaseManager.loadCorpus();
+        onDatabaseReady();
+    }
+
+    private void onDatabaseReady() {
         Set<String> voicedQuests = databaseManager.getVoicedQuests();
         questListIndicatorHandler.setVoicedQuests(voicedQuests);
         SwingUtilities.invokeLater(() -> panel.updateInfo(databaseManager, voicedQuests));
-        log.info("Database initialized");
+        log.info("Database initialized (version {})", DatabaseVersionManager.getDatabaseVersion());
+        buildBkTreesIfSelected();
+    }
+
+    private void buildBkTreesIfSelected() {
+        if (config.fuzzySearchMode() == FuzzySearchMode.BK_TREE) {
+            databaseManager.buildBkTrees();
+        }
     }
 
     private void initializePlayerNameIfNeeded() {
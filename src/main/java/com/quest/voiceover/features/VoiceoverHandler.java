@@ -2,10 +2,22 @@ package com.quest.voiceover.features;
 
 import com.quest.voiceover.QuestVoiceoverConfig;
 import com.quest.voiceover.modules.audio.AudioManager;
+import com.quest.voiceover.modules.cache.LookupResultCache;
+import com.quest.voiceover.modules.cache.LookupResultCache.MatchType;
+import com.quest.voiceover.modules.cache.UnvoicedLineCache;
 import com.quest.voiceover.modules.database.DatabaseManager;
+import com.quest.voiceover.modules.database.DatabaseVersionManager;
+import com.quest.voiceover.modules.database.LookupExecutor;
+import com.quest.voiceover.modules.database.corpus.DialogCorpus;
+import com.quest.voiceover.modules.database.corpus.DialogMatch;
+import com.quest.voiceover.modules.database.corpus.FuzzySearchOptions;
+import com.quest.voiceover.modules.database.corpus.ParallelScanner;
 import com.quest.voiceover.modules.dialog.DialogManager;
+import com.quest.voiceover.modules.quest.QuestStateManager;
 import com.quest.voiceover.utility.MessageUtility;
+import com.quest.voiceover.utility.TextUtility;
 import lombok.Getter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.client.callback.ClientThread;
@@ -15,6 +27,8 @@ import javax.inject.Singleton;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
 
 @Slf4j
 @Singleton
@@ -22,6 +36,17 @@ public class VoiceoverHandler {
 
     private static final double LEVENSHTEIN_THRESHOLD = 0.70;
 
+    /**
+     * A neighbouring line is only taken over the full search when it is this close; anything
+     * looser could be a different line that the speaker-wide search would rank higher.
+     */
+    private static final double CONVERSATION_SHORTCUT_THRESHOLD = 0.95;
+
+    /**
+     * Result of a queued lookup that a newer dialog or stop superseded before it ran.
+     */
+    private static final LookupResultCache.CachedLookup SUPERSEDED_LOOKUP = new LookupResultCache.CachedLookup(null, null);
+
     private static final String EXACT_QUERY =
         "SELECT quest, uri, text FROM dialogs WHERE character = ? AND text = ? LIMIT 1";
 
@@ -51,13 +76,45 @@ public class VoiceoverHandler {
     @Inject
     private DialogSpeechHighlightHandler dialogSpeechHighlightHandler;
 
+    @Inject
+    private ParallelScanner parallelScanner;
+
+    @Inject
+    private UnvoicedLineCache unvoicedLineCache;
+
+    @Inject
+    private LookupResultCache lookupResultCache;
+
+    @Inject
+    private QuestStateManager questStateManager;
+
+    @Inject
+    private LookupExecutor lookupExecutor;
+
     @Getter
     private boolean activeVoiceover;
 
     @Getter
     private String currentQuestName;
 
+    @Getter
+    private int exactMatchCount;
+
+    @Getter
+    private int fuzzyMatchCount;
+
+    private DialogMatch conversationCursor;
+
+    /**
+     * Bumped on the client thread for every dialog message, lookup and stop, so a lookup
+     * result is only played while nothing newer has happened. Read on the lookup thread to
+     * skip queued lookups that were superseded before they started.
+     */
+    private volatile int lookupGeneration;
+
     private String pendingCharacter;
+    private String pendingMessageId;
+    private String pendingChatText;
     private String pendingPlayerName;
     private String pendingOriginalText;
 
@@ -66,36 +123,50 @@ public class VoiceoverHandler {
      * the complete text. Widget-only detection is unreliable because there's no single
      * "dialog changed" event and widget population timing is unpredictable. The chat
      * message signals "dialog happened", then we fetch the full content from the widget.
+     * Speakers with no voiced lines at all are turned away before any widget is read.
      */
     public void handleDialogMessage(String rawMessage, String playerName) {
+        lookupGeneration++;
         String playerVoiceName = config.playerVoice().getCharacterName(client);
         MessageUtility.ParsedMessage chatMessage = MessageUtility.parseRawMessage(rawMessage, playerName, playerVoiceName);
         String chatText = chatMessage.dialogText();
         String chatCharacter = chatMessage.characterName();
 
+        if (!databaseManager.isVoicedCharacter(TextUtility.stripAllTags(chatCharacter))) {
+            log.debug("Skipping dialog from unvoiced speaker: {}", chatCharacter);
+            clearPendingState();
+            stopWithoutVoiceover();
+            return;
+        }
+
         String widgetText = dialogManager.getDialogText();
         String widgetCharacter = dialogManager.getDialogCharacterName();
 
         if (widgetText == null || widgetCharacter == null) {
             log.debug("Widget not available, scheduling retry");
-            scheduleRetry(chatCharacter, playerName, null);
+            scheduleRetry(chatMessage, playerName, null);
             return;
         }
 
         String cleanedWidgetText = MessageUtility.cleanWidgetText(widgetText, playerName);
-        boolean textMatches = cleanedWidgetText.startsWith(chatText) || chatText.startsWith(cleanedWidgetText);
 
-        if (!textMatches) {
+        if (!textMatches(cleanedWidgetText, chatText)) {
             log.debug("Widget text mismatch, scheduling retry");
-            scheduleRetry(chatCharacter, playerName, widgetText);
+            scheduleRetry(chatMessage, playerName, widgetText);
             return;
         }
 
-        playVoiceoverIfAvailable(widgetCharacter, cleanedWidgetText, widgetText);
+        playVoiceoverIfAvailable(chatMessage.messageId(), widgetCharacter, cleanedWidgetText, widgetText);
+    }
+
+    private static boolean textMatches(String cleanedWidgetText, String chatText) {
+        return cleanedWidgetText.startsWith(chatText) || chatText.startsWith(cleanedWidgetText);
     }
 
-    private void scheduleRetry(String character, String playerName, String originalText) {
-        pendingCharacter = character;
+    private void scheduleRetry(MessageUtility.ParsedMessage chatMessage, String playerName, String originalText) {
+        pendingCharacter = chatMessage.characterName();
+        pendingMessageId = chatMessage.messageId();
+        pendingChatText = chatMessage.dialogText();
         pendingPlayerName = playerName;
         pendingOriginalText = originalText;
         clientThread.invokeLater(this::retryWithWidget);
@@ -116,12 +187,17 @@ public class VoiceoverHandler {
         }
 
         String cleanedWidgetText = MessageUtility.cleanWidgetText(widgetText, pendingPlayerName);
-        playVoiceoverIfAvailable(widgetCharacter, cleanedWidgetText, widgetText);
+        // The widget may still hold an earlier line, so only key the lookup by the chat
+        // message when the two agree
+        String messageId = textMatches(cleanedWidgetText, pendingChatText) ? pendingMessageId : null;
+        playVoiceoverIfAvailable(messageId, widgetCharacter, cleanedWidgetText, widgetText);
         clearPendingState();
     }
 
     private void clearPendingState() {
         pendingCharacter = null;
+        pendingMessageId = null;
+        pendingChatText = null;
         pendingPlayerName = null;
         pendingOriginalText = null;
     }
@@ -129,95 +205,272 @@ public class VoiceoverHandler {
     public void handleDialogOpened() {
     }
 
+    /**
+     * Ends the conversation: stops playback and forgets the conversation cursor, so the next
+     * dialog starts with a full search.
+     */
     public void stopVoiceover() {
+        conversationCursor = null;
+        stopCurrentLine();
+    }
+
+    /**
+     * Stops playback when advancing to another line. The conversation cursor is kept so the
+     * next line can still be found just after this one.
+     */
+    public void stopCurrentLine() {
+        lookupGeneration++;
         activeVoiceover = false;
         audioManager.stop();
         dialogSpeechHighlightHandler.stop();
     }
 
     /**
-     * Query stages (in order of speed/accuracy tradeoff):
+     * Query stages (in order of speed/accuracy tradeoff), served from the in-memory corpus
+     * once it has loaded and from SQLite before that. Messages resolved recently are replayed
+     * from the lookup result cache without running any stage.
      * 1. Exact match - fastest, handles most cases where wiki text matches game text
-     * 2. Levenshtein similarity - handles word substitutions (e.g., "called" vs "named")
-     *    where wiki transcript differs from actual in-game text
+     * 2. Conversation cursor - the lines just after the previous match, usually the next line
+     *    of the same conversation
+     * 3. Levenshtein similarity - handles word substitutions (e.g., "called" vs "named")
+     *    where wiki transcript differs from actual in-game text, scored per word first and
+     *    per character for short lines and ties, searching quests in progress before the rest
+     *
+     * <p>The stages run on the lookup executor. Everything they need from the client is
+     * captured here on the client thread, and the result is handed back to it; a result is
+     * only played if no newer dialog or stop arrived while it was being looked up.
      */
-    private void playVoiceoverIfAvailable(String characterName, String dialogText, String originalText) {
+    private void playVoiceoverIfAvailable(String messageId, String characterName, String dialogText, String originalText) {
         if (isPlayerDialog(characterName) && !config.voicePlayerDialog()) {
             log.debug("Skipping player dialog voiceover (disabled in config)");
-            activeVoiceover = false;
-            dialogSpeechHighlightHandler.stop();
-            audioManager.stopImmediately();
+            stopWithoutVoiceover();
             return;
         }
 
-        if (tryExactQuery(characterName, dialogText, originalText)) {
+        if (unvoicedLineCache.contains(characterName, dialogText)) {
+            log.debug("Skipping lookup for known unvoiced line: {} - '{}'", characterName, dialogText);
+            stopWithoutVoiceover();
             return;
         }
 
-        if (tryLevenshteinQuery(characterName, dialogText, originalText)) {
+        LookupResultCache.CachedLookup cachedLookup = lookupResultCache.get(messageId);
+        if (cachedLookup != null) {
+            log.debug("Match type: {} (cached)", cachedLookup.getMatchType());
+            playVoiceoverFromMatch(cachedLookup.getMatch(), characterName, dialogText, originalText);
             return;
         }
 
-        log.info("No voiceover found for {} - '{}'", characterName, dialogText);
+        int generation = ++lookupGeneration;
+        LookupRequest request = new LookupRequest(messageId, characterName, dialogText, conversationCursor,
+            questStateManager.getQuestTiers(), buildSearchOptions(), DatabaseVersionManager.getInstallGeneration());
+
+        lookupExecutor.submit(() -> lookUpIfCurrent(generation, request)).whenComplete((lookup, error) -> {
+            if (error != null) {
+                log.error("Dialog lookup failed for {} - '{}'", characterName, dialogText, error);
+                clientThread.invokeLater(() -> onLookupFailed(generation));
+                return;
+            }
+            if (lookup == SUPERSEDED_LOOKUP) {
+                log.debug("Skipped superseded lookup for {} - '{}'", characterName, dialogText);
+                return;
+            }
+            clientThread.invokeLater(() -> onLookupComplete(generation, request, lookup, originalText));
+        });
+    }
+
+    /**
+     * Runs on the lookup executor. Lookups queue behind each other while the player clicks
+     * through dialog, so one that is already superseded is not run at all.
+     *
+     * @return the lookup result, null if no stage matched, or {@link #SUPERSEDED_LOOKUP} if
+     *         the request was superseded before it started
+     */
+    private LookupResultCache.CachedLookup lookUpIfCurrent(int generation, LookupRequest request) {
+        if (generation != lookupGeneration) {
+            return SUPERSEDED_LOOKUP;
+        }
+        return databaseManager.withCurrentDatabase(() -> lookUp(request));
+    }
+
+    /**
+     * Runs on the lookup executor.
+     *
+     * @return the accepted match and the stage that found it, or null if no stage did
+     */
+    private LookupResultCache.CachedLookup lookUp(LookupRequest request) {
+        String characterName = request.getCharacterName();
+        String dialogText = request.getDialogText();
+
+        DialogMatch match = findExactMatch(characterName, dialogText);
+        if (match != null) {
+            return new LookupResultCache.CachedLookup(match, MatchType.EXACT);
+        }
+
+        match = findInConversation(request);
+        if (match != null) {
+            log.debug("Match type: conversation cursor ({}%)", String.format("%.1f", match.getSimilarity() * 100));
+            return new LookupResultCache.CachedLookup(match, match.getSimilarity() >= 1.0 ? MatchType.EXACT : MatchType.LEVENSHTEIN);
+        }
+
+        match = findFuzzyMatch(request);
+        if (match == null) {
+            log.info("No Levenshtein match above threshold for {} - '{}'", characterName, dialogText);
+            return null;
+        }
+
+        double similarity = match.getSimilarity();
+        if (similarity < LEVENSHTEIN_THRESHOLD) {
+            log.info("Levenshtein match below threshold ({}%) for {} - '{}' best match: '{}'",
+                String.format("%.1f", similarity * 100), characterName, dialogText, match.getText());
+            return null;
+        }
+        return new LookupResultCache.CachedLookup(match, MatchType.LEVENSHTEIN);
+    }
+
+    private void onLookupComplete(int generation, LookupRequest request, LookupResultCache.CachedLookup lookup,
+                                  String originalText) {
+        String characterName = request.getCharacterName();
+        String dialogText = request.getDialogText();
+        // A result from before a database update is still played, just not remembered
+        boolean sameDatabase = request.getDatabaseGeneration() == DatabaseVersionManager.getInstallGeneration();
+
+        if (lookup == null) {
+            log.info("No voiceover found for {} - '{}'", characterName, dialogText);
+            if (sameDatabase) {
+                rememberUnvoicedLine(characterName, dialogText);
+            }
+        } else {
+            if (sameDatabase) {
+                lookupResultCache.put(request.getMessageId(), lookup.getMatch(), lookup.getMatchType());
+            }
+            if (lookup.getMatchType() == MatchType.EXACT) {
+                exactMatchCount++;
+            } else {
+                fuzzyMatchCount++;
+            }
+            log.debug("Match type: {} ({}%, {} exact, {} fuzzy so far)", lookup.getMatchType(),
+                String.format("%.1f", lookup.getMatch().getSimilarity() * 100), exactMatchCount, fuzzyMatchCount);
+        }
+
+        if (generation != lookupGeneration) {
+            log.debug("Dropping stale lookup result for {} - '{}'", characterName, dialogText);
+            return;
+        }
+
+        if (lookup == null || !playVoiceoverFromMatch(lookup.getMatch(), characterName, dialogText, originalText)) {
+            stopWithoutVoiceover();
+        }
+    }
+
+    private void onLookupFailed(int generation) {
+        if (generation == lookupGeneration) {
+            stopWithoutVoiceover();
+        }
+    }
+
+    private void stopWithoutVoiceover() {
+        lookupGeneration++;
         activeVoiceover = false;
         dialogSpeechHighlightHandler.stop();
         audioManager.stopImmediately();
     }
 
+    /**
+     * Misses are only remembered once the corpus has loaded; before that a miss may just be
+     * a failed SQL query.
+     */
+    private void rememberUnvoicedLine(String characterName, String dialogText) {
+        if (databaseManager.getCorpus() != null) {
+            unvoicedLineCache.add(characterName, dialogText);
+        }
+    }
+
     private boolean isPlayerDialog(String characterName) {
         String playerVoiceName = config.playerVoice().getCharacterName(client);
         return playerVoiceName != null && playerVoiceName.equals(characterName);
     }
 
-    private boolean tryExactQuery(String characterName, String dialogText, String originalText) {
-        try (PreparedStatement statement = databaseManager.prepareStatement(EXACT_QUERY)) {
+    private DialogMatch findExactMatch(String characterName, String dialogText) {
+        DialogCorpus corpus = databaseManager.getCorpus();
+        if (corpus != null) {
+            return corpus.findExact(characterName, dialogText);
+        }
+
+        try {
+            PreparedStatement statement = databaseManager.getPreparedStatement(EXACT_QUERY);
             statement.setString(1, characterName);
             statement.setString(2, dialogText);
 
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
-                    log.debug("Match type: exact");
-                    return playVoiceoverFromResult(resultSet, characterName, dialogText, originalText);
+                    return toDialogMatch(resultSet, 1.0);
                 }
             }
         } catch (SQLException e) {
             log.error("Database query failed (exact)", e);
         }
-        return false;
+        return null;
+    }
+
+    private DialogMatch findInConversation(LookupRequest request) {
+        DialogCorpus corpus = databaseManager.getCorpus();
+        if (corpus == null || request.getConversationCursor() == null) {
+            return null;
+        }
+        return corpus.findNextInConversation(request.getConversationCursor(), request.getCharacterName(),
+            request.getDialogText(), CONVERSATION_SHORTCUT_THRESHOLD);
     }
 
-    private boolean tryLevenshteinQuery(String characterName, String dialogText, String originalText) {
-        try (PreparedStatement statement = databaseManager.prepareStatement(LEVENSHTEIN_QUERY)) {
+    private DialogMatch findFuzzyMatch(LookupRequest request) {
+        String characterName = request.getCharacterName();
+        String dialogText = request.getDialogText();
+
+        DialogCorpus corpus = databaseManager.getCorpus();
+        if (corpus != null) {
+            FuzzySearchOptions options = request.getSearchOptions();
+            long startTime = System.nanoTime();
+            DialogMatch match = corpus.findBestMatchByQuestTier(characterName, dialogText, options, request.getQuestTiers());
+            log.debug("Fuzzy lookup ({}) took {} us", options.getMode(), (System.nanoTime() - startTime) / 1_000);
+            return match;
+        }
+
+        try {
+            PreparedStatement statement = databaseManager.getPreparedStatement(LEVENSHTEIN_QUERY);
             statement.setString(1, dialogText);
             statement.setString(2, characterName);
 
             try (ResultSet resultSet = statement.executeQuery()) {
-                if (!resultSet.next()) {
-                    return false;
-                }
-
-                double similarity = resultSet.getDouble("similarity");
-                if (similarity < LEVENSHTEIN_THRESHOLD) {
-                    String bestMatchText = resultSet.getString("text");
-                    log.info("Levenshtein match below threshold ({}%) for {} - '{}' best match: '{}'",
-                        String.format("%.1f", similarity * 100), characterName, dialogText, bestMatchText);
-                    return false;
+                if (resultSet.next()) {
+                    return toDialogMatch(resultSet, resultSet.getDouble("similarity"));
                 }
-
-                log.debug("Match type: levenshtein ({}%)", String.format("%.1f", similarity * 100));
-                return playVoiceoverFromResult(resultSet, characterName, dialogText, originalText);
             }
         } catch (SQLException e) {
             log.error("Database query failed (Levenshtein)", e);
         }
-        return false;
+        return null;
     }
 
-    private boolean playVoiceoverFromResult(ResultSet resultSet, String characterName, String dialogText, String originalText) throws SQLException {
-        String audioUri = resultSet.getString("uri");
-        currentQuestName = resultSet.getString("quest");
-        String matchedText = resultSet.getString("text");
-        log.info("Playing voiceover: {} - {} - '{}' matched: '{}'", characterName, currentQuestName, dialogText, matchedText);
+    private FuzzySearchOptions buildSearchOptions() {
+        return new FuzzySearchOptions(
+            LEVENSHTEIN_THRESHOLD,
+            config.fuzzySearchMode(),
+            config.parallelScanThreshold(),
+            parallelScanner);
+    }
+
+    private DialogMatch toDialogMatch(ResultSet resultSet, double similarity) throws SQLException {
+        return new DialogMatch(
+            resultSet.getString("quest"),
+            resultSet.getString("uri"),
+            resultSet.getString("text"),
+            similarity);
+    }
+
+    private boolean playVoiceoverFromMatch(DialogMatch match, String characterName, String dialogText, String originalText) {
+        String audioUri = match.getUri();
+        currentQuestName = match.getQuest();
+        conversationCursor = match;
+        log.info("Playing voiceover: {} - {} - '{}' matched: '{}'", characterName, currentQuestName, dialogText, match.getText());
 
         if (audioUri == null && currentQuestName == null) {
             return false;
@@ -229,4 +482,17 @@ public class VoiceoverHandler {
         return true;
     }
 
+    /**
+     * Everything a lookup needs from the client, captured on the client thread.
+     */
+    @Value
+    private static class LookupRequest {
+        String messageId;
+        String characterName;
+        String dialogText;
+        DialogMatch conversationCursor;
+        List<Set<String>> questTiers;
+        FuzzySearchOptions searchOptions;
+        int databaseGeneration;
+    }
 }
@@ -0,0 +1,88 @@
+package com.quest.voiceover.modules.cache;
+
+import com.quest.voiceover.modules.database.DatabaseVersionManager;
+import com.quest.voiceover.modules.database.corpus.DialogMatch;
+import lombok.Value;
+
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers how recent dialog messages were resolved, keyed by the message id computed when
+ * the chat message is parsed, so re-talking to an NPC or replaying a cutscene skips both
+ * lookup stages. Lookups without a trustworthy message id pass a null id and are neither
+ * served nor stored. Bounded with least-recently-used eviction and emptied whenever a new
+ * database version is installed.
+ */
+@Singleton
+public class LookupResultCache {
+
+    private static final int CAPACITY = 512;
+
+    public enum MatchType {
+        EXACT,
+        LEVENSHTEIN
+    }
+
+    @Value
+    public static class CachedLookup {
+        DialogMatch match;
+        MatchType matchType;
+    }
+
+    private final Map<String, CachedLookup> lookups = new LinkedHashMap<String, CachedLookup>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedLookup> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private int databaseGeneration = DatabaseVersionManager.getInstallGeneration();
+    private long hits;
+    private long misses;
+
+    public synchronized CachedLookup get(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+
+        invalidateIfDatabaseChanged();
+        CachedLookup lookup = lookups.get(messageId);
+        if (lookup != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return lookup;
+    }
+
+    public synchronized void put(String messageId, DialogMatch match, MatchType matchType) {
+        if (messageId == null) {
+            return;
+        }
+
+        invalidateIfDatabaseChanged();
+        lookups.put(messageId, new CachedLookup(match, matchType));
+    }
+
+    public synchronized void clear() {
+        lookups.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void invalidateIfDatabaseChanged() {
+        int currentGeneration = DatabaseVersionManager.getInstallGeneration();
+        if (currentGeneration != databaseGeneration) {
+            lookups.clear();
+            databaseGeneration = currentGeneration;
+        }
+    }
+}
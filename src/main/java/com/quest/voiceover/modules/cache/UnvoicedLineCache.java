@@ -0,0 +1,54 @@
+package com.quest.voiceover.modules.cache;
+
+import com.quest.voiceover.modules.database.DatabaseVersionManager;
+
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers recent lines that have no voiceover, so repeated unvoiced dialog (bankers,
+ * shopkeepers, idle chatter) skips both lookup stages. Bounded with least-recently-used
+ * eviction and emptied whenever a new database version is installed.
+ */
+@Singleton
+public class UnvoicedLineCache {
+
+    private static final int CAPACITY = 1024;
+
+    private final Map<String, Boolean> lines = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private int databaseGeneration = DatabaseVersionManager.getInstallGeneration();
+
+    public synchronized boolean contains(String characterName, String dialogText) {
+        invalidateIfDatabaseChanged();
+        return lines.get(key(characterName, dialogText)) != null;
+    }
+
+    public synchronized void add(String characterName, String dialogText) {
+        invalidateIfDatabaseChanged();
+        lines.put(key(characterName, dialogText), Boolean.TRUE);
+    }
+
+    public synchronized void clear() {
+        lines.clear();
+    }
+
+    private void invalidateIfDatabaseChanged() {
+        int currentGeneration = DatabaseVersionManager.getInstallGeneration();
+        if (currentGeneration != databaseGeneration) {
+            lines.clear();
+            databaseGeneration = currentGeneration;
+        }
+    }
+
+    private static String key(String characterName, String dialogText) {
+        return characterName + '\n' + dialogText.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,407 @@
+package com.quest.voiceover.modules.database;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.quest.voiceover.utility.HashUtility;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row-level difference between two published database versions, so an update only transfers
+ * the dialogs rows that changed. Changesets are published next to the database as
+ * {@code changesets/<version>.json}, named after the version they apply to:
+ *
+ * <pre>
+ * {
+ *   "from": "&lt;ETag of the base version&gt;",
+ *   "to": "&lt;ETag of the resulting version&gt;",
+ *   "rowCount": &lt;dialogs rows after applying&gt;,
+ *   "digest": "&lt;SHA-256 of the resulting rows&gt;",
+ *   "removed": ["&lt;uri&gt;", ...],
+ *   "changed": [{"uri": ..., "&lt;column&gt;": ..., ...}, ...],
+ *   "added": [{"position": ..., "uri": ..., "&lt;column&gt;": ..., ...}, ...]
+ * }
+ * </pre>
+ *
+ * Rows are identified by their clip uri and carry their values by dialogs column name, so
+ * columns beyond character, quest and text travel with them; a changed row only needs the
+ * columns it sets. An added row's position is its zero-based index in the resulting
+ * version's rowid order, so conversations stay contiguous for the conversation lookahead.
+ * The digest covers every row in rowid order: for each column in declaration order, a 0
+ * byte for null, or a 1 byte followed by the big-endian int length and the UTF-8 bytes of
+ * the value.
+ *
+ * <p>Changesets are applied to a copy of the installed file. One that does not line up with
+ * the local rows, or whose result does not match the row count and digest, is rolled back;
+ * the caller then discards the copy and falls back to a full download.
+ */
+@Slf4j
+@Value
+class DatabaseChangeset {
+
+    private static final String CHANGESET_DIRECTORY = "changesets";
+    private static final String URI_COLUMN = "uri";
+    private static final String POSITION_MEMBER = "position";
+
+    String fromVersion;
+    String toVersion;
+    int rowCount;
+    String digest;
+    List<String> removedUris;
+    List<Row> changedRows;
+    List<AddedRow> addedRows;
+
+    @Value
+    static class Row {
+        /**
+         * Values by column name, in the order the changeset lists them.
+         */
+        Map<String, String> columns;
+
+        String getUri() {
+            return columns.get(URI_COLUMN);
+        }
+    }
+
+    @Value
+    static class AddedRow {
+        int position;
+        Row row;
+    }
+
+    /**
+     * @param databaseUrl the published database, which the changesets directory sits next to
+     * @return the changeset from {@code currentVersion} to the latest version, or null if
+     *         none is published or it cannot be read
+     */
+    static DatabaseChangeset fetch(OkHttpClient client, HttpUrl databaseUrl, String currentVersion, String shortVersion) {
+        HttpUrl url = databaseUrl.newBuilder()
+            .setPathSegment(databaseUrl.pathSize() - 1, CHANGESET_DIRECTORY)
+            .addPathSegment(shortVersion + ".json")
+            .build();
+        Request request = new Request.Builder().url(url).build();
+
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                log.debug("No database changeset for version {}: HTTP {}", shortVersion, response.code());
+                return null;
+            }
+
+            DatabaseChangeset changeset = parse(response.body().string());
+            if (!changeset.fromVersion.equals(currentVersion)) {
+                log.warn("Database changeset {} applies to {}, not to the installed {}", url, changeset.fromVersion, currentVersion);
+                return null;
+            }
+            return changeset;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to fetch database changeset for version {}", shortVersion, e);
+            return null;
+        }
+    }
+
+    /**
+     * @throws RuntimeException if {@code json} is not a well-formed changeset
+     */
+    static DatabaseChangeset parse(String json) {
+        JsonObject root = new JsonParser().parse(json).getAsJsonObject();
+
+        List<String> removedUris = new ArrayList<>();
+        for (JsonElement uri : root.getAsJsonArray("removed")) {
+            removedUris.add(uri.getAsString());
+        }
+
+        List<Row> changedRows = new ArrayList<>();
+        for (JsonElement element : root.getAsJsonArray("changed")) {
+            changedRows.add(parseRow(element.getAsJsonObject()));
+        }
+
+        int rowCount = root.get("rowCount").getAsInt();
+        List<AddedRow> addedRows = new ArrayList<>();
+        for (JsonElement element : root.getAsJsonArray("added")) {
+            JsonObject row = element.getAsJsonObject();
+            addedRows.add(new AddedRow(row.get(POSITION_MEMBER).getAsInt(), parseRow(row)));
+        }
+        addedRows.sort(Comparator.comparingInt(AddedRow::getPosition));
+        for (int index = 0; index < addedRows.size(); index++) {
+            int position = addedRows.get(index).getPosition();
+            if (position < 0 || position >= rowCount || index > 0 && position == addedRows.get(index - 1).getPosition()) {
+                throw new IllegalArgumentException("Invalid position for added row: " + position);
+            }
+        }
+
+        return new DatabaseChangeset(
+            root.get("from").getAsString(),
+            root.get("to").getAsString(),
+            rowCount,
+            root.get("digest").getAsString(),
+            removedUris,
+            changedRows,
+            addedRows);
+    }
+
+    private static Row parseRow(JsonObject row) {
+        Map<String, String> columns = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> member : row.entrySet()) {
+            if (!member.getKey().equals(POSITION_MEMBER)) {
+                JsonElement value = member.getValue();
+                columns.put(member.getKey(), value.isJsonNull() ? null : value.getAsString());
+            }
+        }
+        if (columns.get(URI_COLUMN) == null) {
+            throw new IllegalArgumentException("Changeset row without a uri: " + row);
+        }
+        return new Row(columns);
+    }
+
+    /**
+     * Applies the changeset to {@code databaseFile} in one transaction and checks the result.
+     *
+     * @return true if the file now holds the new version, false if it was left as it was
+     */
+    boolean applyTo(Path databaseFile) {
+        long startTime = System.nanoTime();
+
+        try (Connection connection = SqliteConnections.open(databaseFile)) {
+            connection.setAutoCommit(false);
+            try {
+                List<String> columns = readColumns(connection);
+                applyRows(connection, columns);
+                if (countRows(connection) != rowCount) {
+                    throw new SQLException("Expected " + rowCount + " dialogs rows after applying the changeset");
+                }
+                if (!addedRows.isEmpty()) {
+                    restoreOrder(connection, columns);
+                }
+                String resultDigest = digestRows(connection);
+                if (!resultDigest.equalsIgnoreCase(digest)) {
+                    throw new SQLException("Rows after applying the changeset hash to " + resultDigest + ", expected " + digest);
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+
+            if (!passesIntegrityCheck(connection)) {
+                log.warn("Database failed its integrity check after applying the changeset");
+                return false;
+            }
+        } catch (SQLException e) {
+            log.warn("Failed to apply database changeset, downloading the full database instead", e);
+            return false;
+        }
+
+        log.info("Applied database changeset ({} removed, {} changed, {} added) in {} ms",
+            removedUris.size(), changedRows.size(), addedRows.size(), (System.nanoTime() - startTime) / 1_000_000);
+        return true;
+    }
+
+    private void applyRows(Connection connection, List<String> columns) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM dialogs WHERE uri = ?")) {
+            for (String uri : removedUris) {
+                delete.setString(1, uri);
+                if (delete.executeUpdate() == 0) {
+                    throw new SQLException("Removed row not found: " + uri);
+                }
+            }
+        }
+
+        for (Row row : changedRows) {
+            List<String> assignments = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for (Map.Entry<String, String> column : row.getColumns().entrySet()) {
+                if (!column.getKey().equals(URI_COLUMN)) {
+                    assignments.add(quoteColumn(columns, column.getKey()) + " = ?");
+                    values.add(column.getValue());
+                }
+            }
+            if (assignments.isEmpty()) {
+                continue;
+            }
+            values.add(row.getUri());
+
+            try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE dialogs SET " + String.join(", ", assignments) + " WHERE uri = ?")) {
+                bind(update, values);
+                if (update.executeUpdate() == 0) {
+                    throw new SQLException("Changed row not found: " + row.getUri());
+                }
+            }
+        }
+
+        for (AddedRow addedRow : addedRows) {
+            Map<String, String> values = addedRow.getRow().getColumns();
+            List<String> names = new ArrayList<>();
+            for (String column : values.keySet()) {
+                names.add(quoteColumn(columns, column));
+            }
+
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO dialogs (" + String.join(", ", names)
+                + ") VALUES (" + String.join(", ", Collections.nCopies(names.size(), "?")) + ")")) {
+                bind(insert, new ArrayList<>(values.values()));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Added rows were appended, in position order, after the rows kept from the base version.
+     * Rows before the first added position are already in place. If any added row belongs
+     * further up, the rows from that position on are moved to the end of the table in their
+     * published order, the same order the database compiler writes. Every column is copied,
+     * so columns the changeset does not mention survive the move.
+     */
+    private void restoreOrder(Connection connection, List<String> columns) throws SQLException {
+        int firstMoved = addedRows.get(0).getPosition();
+        int firstAppended = rowCount - addedRows.size();
+        if (firstMoved == firstAppended) {
+            // Positions are distinct and sorted, so every added row is already where it was appended
+            return;
+        }
+
+        List<Long> rowids = new ArrayList<>(rowCount - firstMoved);
+        try (PreparedStatement statement = connection.prepareStatement("SELECT rowid FROM dialogs ORDER BY rowid LIMIT -1 OFFSET ?")) {
+            statement.setInt(1, firstMoved);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    rowids.add(resultSet.getLong(1));
+                }
+            }
+        }
+
+        String columnList = joinColumns(columns, null);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMP TABLE changeset_order (position INTEGER PRIMARY KEY, source_rowid INTEGER NOT NULL)");
+
+            int nextKept = 0;
+            int nextAdded = firstAppended - firstMoved;
+            int added = 0;
+            try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO changeset_order (position, source_rowid) VALUES (?, ?)")) {
+                for (int position = firstMoved; position < rowCount; position++) {
+                    boolean isAdded = added < addedRows.size() && addedRows.get(added).getPosition() == position;
+                    insert.setInt(1, position);
+                    insert.setLong(2, isAdded ? rowids.get(nextAdded + added++) : rowids.get(nextKept++));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+
+            statement.execute("CREATE TEMP TABLE changeset_rows AS "
+                + "SELECT changeset_order.position AS changeset_position, " + joinColumns(columns, "dialogs") + " "
+                + "FROM changeset_order JOIN dialogs ON dialogs.rowid = changeset_order.source_rowid");
+            statement.execute("DELETE FROM dialogs WHERE rowid IN (SELECT source_rowid FROM changeset_order)");
+            statement.execute("INSERT INTO dialogs (" + columnList + ") "
+                + "SELECT " + columnList + " FROM changeset_rows ORDER BY changeset_position");
+            statement.execute("DROP TABLE changeset_rows");
+            statement.execute("DROP TABLE changeset_order");
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 of the dialogs rows in rowid order, encoded as described above
+     */
+    static String digestRows(Connection connection) throws SQLException {
+        List<String> columns = readColumns(connection);
+        MessageDigest digest = HashUtility.newSHA256Digest();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT " + joinColumns(columns, null) + " FROM dialogs ORDER BY rowid")) {
+            while (resultSet.next()) {
+                for (int column = 1; column <= columns.size(); column++) {
+                    updateDigest(digest, resultSet.getString(column));
+                }
+            }
+        }
+        return HashUtility.toHex(digest.digest());
+    }
+
+    private static void updateDigest(MessageDigest digest, String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    /**
+     * @return the dialogs column names in declaration order
+     */
+    private static List<String> readColumns(Connection connection) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(dialogs)")) {
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("name"));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Column names come from the changeset, so only ones the table declares are put into SQL.
+     */
+    private static String quoteColumn(List<String> columns, String column) throws SQLException {
+        if (!columns.contains(column)) {
+            throw new SQLException("Changeset names a column dialogs does not have: " + column);
+        }
+        return quoteIdentifier(column);
+    }
+
+    private static String joinColumns(List<String> columns, String table) {
+        List<String> quoted = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            quoted.add(table == null ? quoteIdentifier(column) : table + "." + quoteIdentifier(column));
+        }
+        return String.join(", ", quoted);
+    }
+
+    private static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static void bind(PreparedStatement statement, List<String> values) throws SQLException {
+        for (int index = 0; index < values.size(); index++) {
+            statement.setString(index + 1, values.get(index));
+        }
+    }
+
+    private static int countRows(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM dialogs")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static boolean passesIntegrityCheck(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA quick_check")) {
+            return resultSet.next() && "ok".equals(resultSet.getString(1));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.quest.voiceover.modules.database;
+
+import com.quest.voiceover.utility.HashUtility;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads a database file so that an interrupted transfer is resumed rather than restarted
+ * and a truncated or corrupted file is never reported as complete.
+ *
+ * <p>The gzip-compressed {@code <file>.gz} is preferred when it is published, which cuts
+ * the transfer several-fold; it is unpacked from disk into the target file as a stream, so
+ * neither form is ever held in memory. Without it, or when it cannot be transferred,
+ * unpacked or does not match the published checksum, the raw file is transferred, which
+ * OkHttp still negotiates gzip content encoding for on a fresh transfer.
+ *
+ * <p>Each partial transfer is kept together with the ETag of the response it came from. The
+ * next attempt, in this session or a later one, asks for the remaining bytes with
+ * {@code Range}, using that ETag as the {@code If-Range} validator, so a server that has
+ * moved on to a new file sends the whole new file instead. The database bytes are hashed
+ * with SHA-256 as they are written and checked against the checksum published next to the
+ * database.
+ */
+@Slf4j
+class DatabaseDownloader {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String PARTIAL_VERSION_SUFFIX = ".etag";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(\\d+)");
+
+    private DatabaseDownloader() {}
+
+    /**
+     * @return true if {@code targetFile} now holds the complete, verified file, false if the
+     *         download failed verification and was discarded
+     * @throws IOException if the transfer still failed after retrying; the partial file is
+     *                     kept for the next attempt
+     */
+    static boolean download(OkHttpClient client, HttpUrl url, String version, Path targetFile) throws IOException {
+        String expectedChecksum = fetchPublishedChecksum(client, url);
+        HttpUrl compressedUrl = siblingUrl(url, GZIP_SUFFIX);
+
+        String checksum = compressedUrl == null ? null : downloadCompressed(client, compressedUrl, targetFile);
+        if (checksum != null && expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(checksum)) {
+            log.warn("Unpacked database {} checksum {} does not match the published {}, downloading it uncompressed",
+                version, checksum, expectedChecksum);
+            discardPartial(targetFile);
+            checksum = null;
+        }
+        if (checksum == null) {
+            checksum = transfer(client, url, targetFile);
+            if (checksum == null) {
+                throw new IOException("Database not found at " + url);
+            }
+        }
+
+        if (expectedChecksum == null) {
+            log.warn("No checksum published for {}, relying on the transfer length only", url);
+        } else if (!expectedChecksum.equalsIgnoreCase(checksum)) {
+            log.error("Downloaded database {} checksum {} does not match the published {}, discarding it",
+                version, checksum, expectedChecksum);
+            discardPartial(targetFile);
+            return false;
+        }
+
+        Files.deleteIfExists(partialVersionFile(targetFile));
+        return true;
+    }
+
+    /**
+     * @return the SHA-256 of the transferred file, or null if nothing is published at
+     *         {@code url}
+     */
+    private static String transfer(OkHttpClient client, HttpUrl url, Path targetFile) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transferOnce(client, url, targetFile);
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("Database download interrupted, resuming (attempt {} of {})", attempt + 1, MAX_ATTEMPTS, e);
+            }
+        }
+    }
+
+    private static String transferOnce(OkHttpClient client, HttpUrl url, Path targetFile) throws IOException {
+        Path partialVersionFile = partialVersionFile(targetFile);
+        String partialVersion = resumableVersion(targetFile, partialVersionFile);
+        long resumeFrom = partialVersion == null ? 0 : Files.size(targetFile);
+
+        Request.Builder request = new Request.Builder().url(url);
+        if (resumeFrom > 0) {
+            request.header("Range", "bytes=" + resumeFrom + "-").header("If-Range", partialVersion);
+        }
+
+        try (Response response = client.newCall(request.build()).execute()) {
+            ResponseBody body = response.body();
+            if (response.code() == 404) {
+                return null;
+            }
+            if (response.code() == 416) {
+                discardPartial(targetFile);
+                throw new IOException("Partial download of " + url + " is no longer valid, starting over");
+            }
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Failed to download " + url + ": HTTP " + response.code() + " " + response.message());
+            }
+
+            MessageDigest digest = HashUtility.newSHA256Digest();
+            long expectedLength;
+            boolean resumed = response.code() == 206;
+            if (resumed) {
+                expectedLength = checkContentRange(response.header("Content-Range"), resumeFrom, targetFile);
+                updateDigest(digest, targetFile);
+                log.info("Resuming download of {} at {} of {} KiB", url, resumeFrom / 1024, expectedLength / 1024);
+            } else {
+                expectedLength = body.contentLength();
+                recordPartialVersion(partialVersionFile, response.header("ETag"));
+            }
+
+            try (OutputStream fileOut = resumed
+                     ? Files.newOutputStream(targetFile, StandardOpenOption.APPEND)
+                     : Files.newOutputStream(targetFile);
+                 InputStream inputStream = body.byteStream();
+                 OutputStream outputStream = new DigestOutputStream(fileOut, digest)) {
+                inputStream.transferTo(outputStream);
+            }
+
+            long length = Files.size(targetFile);
+            if (expectedLength >= 0 && length != expectedLength) {
+                throw new IOException("Download of " + url + " ended at " + length + " of " + expectedLength + " bytes");
+            }
+            return HashUtility.toHex(digest.digest());
+        }
+    }
+
+    /**
+     * Transfers and unpacks the compressed file. Any failure leaves nothing of it behind, so
+     * the caller can fall back to the uncompressed file.
+     *
+     * @return the SHA-256 of the unpacked file, or null if it is not published or could not
+     *         be transferred or unpacked
+     */
+    private static String downloadCompressed(OkHttpClient client, HttpUrl compressedUrl, Path targetFile) throws IOException {
+        Path compressedFile = siblingFile(targetFile, GZIP_SUFFIX);
+        try {
+            if (transfer(client, compressedUrl, compressedFile) == null) {
+                return null;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to download the compressed database, downloading it uncompressed", e);
+            discardPartial(compressedFile);
+            return null;
+        }
+
+        try {
+            String checksum = decompress(compressedFile, targetFile);
+            log.info("Downloaded compressed database: {} KiB, {} KiB unpacked",
+                Files.size(compressedFile) / 1024, Files.size(targetFile) / 1024);
+            discardPartial(compressedFile);
+            return checksum;
+        } catch (IOException e) {
+            log.warn("Failed to unpack the compressed database, downloading it uncompressed", e);
+            discardPartial(targetFile);
+            return null;
+        }
+    }
+
+    /**
+     * Overwrites {@code targetFile}, so any partial uncompressed transfer there is no longer
+     * resumable.
+     *
+     * @return the SHA-256 of the unpacked file
+     */
+    private static String decompress(Path compressedFile, Path targetFile) throws IOException {
+        Files.deleteIfExists(partialVersionFile(targetFile));
+        MessageDigest digest = HashUtility.newSHA256Digest();
+        try (InputStream inputStream = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(compressedFile)));
+             OutputStream outputStream = new DigestOutputStream(Files.newOutputStream(targetFile), digest)) {
+            inputStream.transferTo(outputStream);
+        } catch (IOException e) {
+            discardPartial(compressedFile);
+            throw e;
+        }
+        return HashUtility.toHex(digest.digest());
+    }
+
+    /**
+     * A partial file can only be resumed with the strong ETag of the response it came from,
+     * which is all {@code If-Range} accepts.
+     *
+     * @return that ETag, or null if the partial file cannot be resumed
+     */
+    private static String resumableVersion(Path targetFile, Path partialVersionFile) throws IOException {
+        if (!Files.exists(targetFile) || !Files.exists(partialVersionFile)) {
+            return null;
+        }
+        String version = Files.readString(partialVersionFile).trim();
+        return version.isEmpty() || version.startsWith("W/") ? null : version;
+    }
+
+    private static void recordPartialVersion(Path partialVersionFile, String etag) throws IOException {
+        if (etag == null) {
+            Files.deleteIfExists(partialVersionFile);
+        } else {
+            Files.writeString(partialVersionFile, etag);
+        }
+    }
+
+    /**
+     * @return the full length of the file
+     */
+    private static long checkContentRange(String contentRange, long resumeFrom, Path targetFile) throws IOException {
+        Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (matcher == null || !matcher.matches() || Long.parseLong(matcher.group(1)) != resumeFrom) {
+            discardPartial(targetFile);
+            throw new IOException("Unexpected Content-Range " + contentRange + " when resuming at " + resumeFrom);
+        }
+        return Long.parseLong(matcher.group(2));
+    }
+
+    private static void updateDigest(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * The checksum of the uncompressed file is published as {@code <file>.sha256} in
+     * {@code sha256sum} format, so only the first field is read.
+     *
+     * @return the lowercase hex checksum, or null if none is published
+     */
+    private static String fetchPublishedChecksum(OkHttpClient client, HttpUrl url) {
+        HttpUrl checksumUrl = siblingUrl(url, CHECKSUM_SUFFIX);
+        if (checksumUrl == null) {
+            return null;
+        }
+
+        Request request = new Request.Builder().url(checksumUrl).build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                return null;
+            }
+
+            String[] fields = response.body().string().trim().split("\\s+");
+            return fields[0].isEmpty() ? null : fields[0].toLowerCase();
+        } catch (IOException e) {
+            log.warn("Failed to fetch database checksum", e);
+            return null;
+        }
+    }
+
+    private static void discardPartial(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(partialVersionFile(file));
+    }
+
+    private static HttpUrl siblingUrl(HttpUrl url, String suffix) {
+        return url.resolve(url.pathSegments().get(url.pathSize() - 1) + suffix);
+    }
+
+    private static Path siblingFile(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    private static Path partialVersionFile(Path file) {
+        return siblingFile(file, PARTIAL_VERSION_SUFFIX);
+    }
+}
@@ -0,0 +1,66 @@
+package com.quest.voiceover.modules.database;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs database setup, updates, corpus loads and BK-tree builds on a dedicated thread, so
+ * waiting for another client's download or indexing the corpus never holds up the shared
+ * scheduled executor other plugins rely on. Tasks run one at a time in submission order.
+ */
+@Slf4j
+@Singleton
+public class DatabaseExecutor {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private ExecutorService executor;
+
+    public void execute(Runnable task) {
+        getExecutor().execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Database task failed", e);
+            }
+        });
+    }
+
+    /**
+     * Interrupts the running task, which ends a wait for the download lock, and waits for it
+     * to finish so it no longer uses the database when it is closed.
+     */
+    public synchronized void shutDown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Database thread did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(DatabaseExecutor::newDatabaseThread);
+            log.debug("Started database thread");
+        }
+        return executor;
+    }
+
+    private static Thread newDatabaseThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "quest-voiceover-database");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
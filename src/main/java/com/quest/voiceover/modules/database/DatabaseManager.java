@@ -1,50 +1,259 @@
 package com.quest.voiceover.modules.database;
 
+import com.quest.voiceover.modules.database.corpus.DialogCorpus;
 import com.quest.voiceover.modules.database.functions.LevenshteinFunction;
 import lombok.extern.slf4j.Slf4j;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
 
 import javax.inject.Singleton;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
+/**
+ * Connections are confined to the thread that opened them, each with its own registered
+ * functions and prepared statement cache, so the client thread and background executors
+ * never share a connection. Closing bumps a generation counter: every thread discards its
+ * stale connection on its next call and opens one against the database file this client
+ * has leased. Connections and the corpus stay pinned to that file until this client swaps
+ * versions, even when another client sharing the directory installs a newer one, and the
+ * lease keeps that client from deleting the file in the meantime.
+ *
+ * <p>The plugin never writes to the database, and a new version is always installed as a
+ * new file, so connections open it as immutable and read-only. SQLite then skips locking
+ * and journal checks and serves pages straight from the memory-mapped file, which clients
+ * running side by side share through the OS page cache.
+ *
+ * <p>A new database version is swapped in while the plugin runs: lookups run under the read
+ * side of a lock and the swap under its write side, so a lookup always sees one version.
+ */
 @Slf4j
 @Singleton
 public class DatabaseManager {
 
-    private static final String SQL_PATH_PREFIX = "jdbc:sqlite:";
+    private static final long MMAP_SIZE_BYTES = 256L * 1024 * 1024;
+    private static final int CACHE_SIZE_KIB = 4 * 1024;
+    private static final String VOICED_CHARACTERS_QUERY = "SELECT DISTINCT character FROM dialogs";
 
-    private Connection connection;
+    private final ThreadLocal<ThreadConnection> threadConnections = new ThreadLocal<>();
+    private final Set<ThreadConnection> openConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionGeneration = new AtomicInteger();
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    private volatile DialogCorpus corpus;
+
+    private volatile Set<String> voicedCharacters;
+
+    private volatile String loadedEtag;
+
+    private DatabaseVersionManager.DatabaseLease lease;
 
     public void initializeConnection() {
         getConnection();
     }
 
-    public boolean isConnected() {
+    /**
+     * Lookups fall back to SQL queries until this completes, so a failed load only costs
+     * speed, never voiceovers.
+     */
+    public void loadCorpus() {
+        ThreadConnection activeConnection = getConnection();
+        if (activeConnection == null) {
+            return;
+        }
+
+        String databaseEtag = activeConnection.databaseEtag;
+        DialogCorpus loadedCorpus = loadCorpus(activeConnection.connection, databaseEtag);
+        if (loadedCorpus != null) {
+            corpus = loadedCorpus;
+            loadedEtag = databaseEtag;
+        }
+    }
+
+    /**
+     * Switches to a newly prepared database version while lookups keep being served from the
+     * current one. If the prepared file cannot be read or installed, the current version
+     * stays in use.
+     */
+    public void installUpdate(DatabaseVersionManager.PreparedDatabase update) {
+        try {
+            swapTo(update.getFile(), update.getVersion(), () ->
+                DatabaseVersionManager.leaseDatabase(DatabaseVersionManager.install(update), update.getVersion()));
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Switches to the installed database if another client sharing the directory replaced it
+     * since this one loaded it.
+     */
+    public void reloadIfReplaced() {
+        String installedEtag = DatabaseVersionManager.getDatabaseEtag();
+        if (installedEtag.isEmpty() || installedEtag.equals(loadedEtag)) {
+            return;
+        }
+
         try {
-            return connection != null && !connection.isClosed();
+            log.info("Database version {} was installed by another client, switching to it", installedEtag);
+            DatabaseVersionManager.DatabaseLease installedLease = DatabaseVersionManager.leaseInstalledDatabase();
+            boolean swapped = swapTo(installedLease.getFile(), installedLease.getVersion(), () -> {
+                DatabaseVersionManager.adoptInstalledVersion();
+                return installedLease;
+            });
+            if (!swapped) {
+                installedLease.close();
+            }
+        } catch (FileNotFoundException e) {
+            log.error("Database file not found", e);
+        } catch (IOException e) {
+            log.error("Failed to lease the installed database, keeping the current version", e);
+        }
+    }
+
+    /**
+     * Reads the new corpus and voiced characters from {@code databaseFile} first. Then, once
+     * any in-flight lookup has finished on the old version, closes every connection, runs
+     * {@code install} and publishes the new state in one step; statement caches go with the
+     * connections and are rebuilt on the new file. Only then is the lease on the old file
+     * released and any version no client still leases deleted.
+     *
+     * @return true if this client now uses {@code databaseFile}
+     */
+    private boolean swapTo(Path databaseFile, String databaseEtag, InstallStep install) {
+        Set<String> updatedVoicedCharacters;
+        DialogCorpus updatedCorpus;
+        try (Connection connection = openReadOnly(databaseFile.toString());
+             PreparedStatement statement = connection.prepareStatement(VOICED_CHARACTERS_QUERY)) {
+            updatedVoicedCharacters = queryVoicedCharacters(statement);
+            updatedCorpus = loadCorpus(connection, databaseEtag);
         } catch (SQLException e) {
+            log.error("Failed to read the updated database, keeping the current version", e);
             return false;
         }
+
+        swapLock.writeLock().lock();
+        try {
+            connectionGeneration.incrementAndGet();
+            for (ThreadConnection openConnection : openConnections) {
+                discard(openConnection);
+            }
+            replaceLease(install.run());
+            corpus = updatedCorpus;
+            voicedCharacters = updatedVoicedCharacters;
+            loadedEtag = databaseEtag;
+        } catch (IOException e) {
+            log.error("Failed to install the updated database, keeping the current version", e);
+            return false;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        DatabaseVersionManager.deleteStaleDatabases(databaseFile);
+        return true;
     }
 
-    public void closeConnection() throws SQLException {
-        if (connection != null) {
-            connection.close();
-            connection = null;
+    /**
+     * Runs a lookup against a single database version: an update waits for it to finish
+     * before switching.
+     */
+    public <T> T withCurrentDatabase(Supplier<T> lookup) {
+        swapLock.readLock().lock();
+        try {
+            return lookup.get();
+        } finally {
+            swapLock.readLock().unlock();
         }
     }
 
-    public PreparedStatement prepareStatement(String query) throws SQLException {
-        return getConnection().prepareStatement(query);
+    public void buildBkTrees() {
+        DialogCorpus loadedCorpus = corpus;
+        if (loadedCorpus == null || loadedCorpus.hasBkTrees()) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        loadedCorpus.buildBkTrees();
+        log.info("Built BK-tree index in {} ms, corpus now holds {} KiB heap",
+            (System.nanoTime() - startTime) / 1_000_000, loadedCorpus.heapBytes() / 1024);
+    }
+
+    /**
+     * @return the in-memory corpus, or null if it has not been loaded yet
+     */
+    public DialogCorpus getCorpus() {
+        return corpus;
+    }
+
+    public boolean isConnected() {
+        return !openConnections.isEmpty();
+    }
+
+    /**
+     * Closes every thread's connection. Like a swap, this waits for an in-flight lookup to
+     * finish first, so no connection is closed while another thread is using it.
+     */
+    public void closeConnection() {
+        swapLock.writeLock().lock();
+        try {
+            corpus = null;
+            voicedCharacters = null;
+            loadedEtag = null;
+            connectionGeneration.incrementAndGet();
+            for (ThreadConnection openConnection : openConnections) {
+                discard(openConnection);
+            }
+            replaceLease(null);
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a statement cached on the calling thread's connection. The statement stays
+     * owned by this manager and is reused for later calls with the same query, so callers
+     * close only the result sets they open, never the statement.
+     */
+    public PreparedStatement getPreparedStatement(String query) throws SQLException {
+        ThreadConnection activeConnection = getConnection();
+        if (activeConnection == null) {
+            throw new SQLException("No connection to voiceover database");
+        }
+        return activeConnection.statementFor(query);
+    }
+
+    public void loadVoicedCharacters() {
+        try {
+            voicedCharacters = queryVoicedCharacters(getPreparedStatement(VOICED_CHARACTERS_QUERY));
+        } catch (SQLException e) {
+            log.error("Failed to query voiced characters", e);
+        }
+    }
+
+    /**
+     * Until the voiced characters have loaded every speaker is treated as voiced, so the gate
+     * can only ever skip lookups that would have found nothing.
+     */
+    public boolean isVoicedCharacter(String characterName) {
+        Set<String> characters = voicedCharacters;
+        return characters == null || characters.contains(characterName);
     }
 
     public Set<String> getVoicedQuests() {
         Set<String> voicedQuests = new HashSet<>();
 
-        try (PreparedStatement statement = prepareStatement("SELECT DISTINCT quest FROM dialogs");
-             ResultSet resultSet = statement.executeQuery()) {
+        try (ResultSet resultSet = getPreparedStatement("SELECT DISTINCT quest FROM dialogs").executeQuery()) {
 
             while (resultSet.next()) {
                 voicedQuests.add(resultSet.getString("quest"));
@@ -56,33 +265,202 @@ public class DatabaseManager {
         return voicedQuests;
     }
 
-    private Connection getConnection() {
-        if (connection != null) {
-            try {
-                if (!connection.isClosed()) {
-                    return connection;
-                }
-            } catch (SQLException e) {
-                log.warn("Error checking connection status, reconnecting", e);
+    private ThreadConnection getConnection() {
+        int generation = connectionGeneration.get();
+        ThreadConnection current = threadConnections.get();
+        if (current != null) {
+            if (current.generation == generation && current.isOpen()) {
+                return current;
             }
-            connection = null;
+            discard(current);
+            threadConnections.remove();
         }
 
         try {
-            Class.forName("org.sqlite.JDBC");
-            String databasePath = DatabaseVersionManager.getDatabasePath();
-            connection = DriverManager.getConnection(SQL_PATH_PREFIX + databasePath);
+            DatabaseVersionManager.DatabaseLease activeLease;
+            synchronized (this) {
+                activeLease = currentLease();
+                generation = connectionGeneration.get();
+            }
+            Connection connection = openReadOnly(activeLease.getFile().toString());
             LevenshteinFunction.register(connection);
-            log.info("Established connection to voiceover database");
+
+            ThreadConnection opened = new ThreadConnection(connection, generation, activeLease.getVersion());
+            openConnections.add(opened);
+            threadConnections.set(opened);
+            log.info("Established connection to voiceover database on {}", Thread.currentThread().getName());
+            return opened;
         } catch (FileNotFoundException e) {
             log.error("Database file not found", e);
-        } catch (SQLException e) {
+        } catch (IOException | SQLException e) {
             log.error("Failed to connect to database", e);
-        } catch (ClassNotFoundException e) {
-            log.error("SQLite JDBC driver not found", e);
-            throw new RuntimeException(e);
         }
 
+        return null;
+    }
+
+    /**
+     * Leases the installed database on first use after startup or a close.
+     */
+    private synchronized DatabaseVersionManager.DatabaseLease currentLease() throws IOException {
+        if (lease == null) {
+            lease = DatabaseVersionManager.leaseInstalledDatabase();
+        }
+        return lease;
+    }
+
+    /**
+     * Bumps the generation with the lease, so a connection opened on the old file while the
+     * lease was changing is discarded on its thread's next call.
+     */
+    private synchronized void replaceLease(DatabaseVersionManager.DatabaseLease replacement) {
+        if (lease != null && lease != replacement) {
+            lease.close();
+        }
+        lease = replacement;
+        connectionGeneration.incrementAndGet();
+    }
+
+    private static Connection openReadOnly(String databasePath) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+
+        String uri = Path.of(databasePath).toUri() + "?immutable=1";
+        Connection connection = SqliteConnections.open(uri, config.toProperties());
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA mmap_size = " + MMAP_SIZE_BYTES);
+            statement.execute("PRAGMA cache_size = -" + CACHE_SIZE_KIB);
+            statement.execute("PRAGMA query_only = 1");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
         return connection;
     }
+
+    private static Set<String> queryVoicedCharacters(PreparedStatement statement) throws SQLException {
+        Set<String> characters = new HashSet<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                characters.add(resultSet.getString("character"));
+            }
+        }
+        return Collections.unmodifiableSet(characters);
+    }
+
+    /**
+     * Maps the corpus index compiled for {@code databaseEtag} when there is one. Otherwise
+     * reads the dialogs table and compiles the index for the next startup.
+     *
+     * @return the corpus, or null if the dialogs table could not be read
+     */
+    private static DialogCorpus loadCorpus(Connection connection, String databaseEtag) {
+        long startTime = System.nanoTime();
+        Path indexFile = DatabaseVersionManager.getCorpusIndexPath(databaseEtag);
+        String source = "compiled index";
+        DialogCorpus loadedCorpus = openCompiledCorpus(indexFile, databaseEtag);
+
+        if (loadedCorpus == null) {
+            source = "database";
+            try {
+                loadedCorpus = DialogCorpus.load(connection);
+            } catch (SQLException e) {
+                log.error("Failed to load dialog corpus, using database queries", e);
+                return null;
+            }
+        }
+
+        long elapsedMs = (System.nanoTime() - startTime) / 1_000_000;
+        log.info("Loaded dialog corpus from {}: {} lines for {} characters in {} ms ({} KiB heap, {} KiB off-heap)",
+            source, loadedCorpus.size(), loadedCorpus.characterCount(), elapsedMs,
+            loadedCorpus.heapBytes() / 1024, loadedCorpus.offHeapBytes() / 1024);
+
+        if (source.equals("database")) {
+            saveCompiledCorpus(loadedCorpus, indexFile, databaseEtag);
+        }
+        return loadedCorpus;
+    }
+
+    private static DialogCorpus openCompiledCorpus(Path indexFile, String databaseEtag) {
+        if (indexFile == null) {
+            return null;
+        }
+
+        try {
+            return DialogCorpus.open(indexFile, databaseEtag);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Compiled corpus index {} is unreadable, rebuilding it", indexFile, e);
+            return null;
+        }
+    }
+
+    private static void saveCompiledCorpus(DialogCorpus loadedCorpus, Path indexFile, String databaseEtag) {
+        if (indexFile == null) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            loadedCorpus.save(indexFile, databaseEtag);
+            log.info("Compiled corpus index {} in {} ms", indexFile.getFileName(), (System.nanoTime() - startTime) / 1_000_000);
+        } catch (IOException e) {
+            log.warn("Failed to compile corpus index, the next startup reads the database again", e);
+        }
+        DatabaseVersionManager.deleteStaleCorpusIndexes(indexFile);
+    }
+
+    private void discard(ThreadConnection threadConnection) {
+        if (openConnections.remove(threadConnection)) {
+            threadConnection.close();
+        }
+    }
+
+    private interface InstallStep {
+        /**
+         * @return the lease on the installed file
+         */
+        DatabaseVersionManager.DatabaseLease run() throws IOException;
+    }
+
+    private static final class ThreadConnection {
+
+        private final Connection connection;
+        private final int generation;
+        private final String databaseEtag;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private ThreadConnection(Connection connection, int generation, String databaseEtag) {
+            this.connection = connection;
+            this.generation = generation;
+            this.databaseEtag = databaseEtag;
+        }
+
+        private PreparedStatement statementFor(String query) throws SQLException {
+            PreparedStatement statement = statements.get(query);
+            if (statement == null) {
+                statement = connection.prepareStatement(query);
+                statements.put(query, statement);
+            }
+            return statement;
+        }
+
+        private boolean isOpen() {
+            try {
+                return !connection.isClosed();
+            } catch (SQLException e) {
+                log.warn("Error checking connection status, reconnecting", e);
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close database connection", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package com.quest.voiceover.modules.database;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Prepares a freshly downloaded database before it is installed: adds the index the dialog
+ * lookups depend on, refreshes the planner statistics and checks that the lookups really
+ * are served by an index. A database that cannot be prepared is still installed; the
+ * lookups only get slower, so that is logged rather than treated as a failed download.
+ */
+@Slf4j
+class DatabaseOptimizer {
+
+    /**
+     * Covers both the exact lookup (character and text) and the per-character fuzzy lookup,
+     * which uses the leading column, without touching the table rows.
+     */
+    private static final String CREATE_LOOKUP_INDEX =
+        "CREATE INDEX IF NOT EXISTS idx_dialogs_character_text ON dialogs (character, text, quest, uri)";
+
+    private static final String[] INDEXED_QUERIES = {
+        "SELECT quest, uri, text FROM dialogs WHERE character = ? AND text = ? LIMIT 1",
+        "SELECT quest, uri, text FROM dialogs WHERE character = ?"
+    };
+
+    private DatabaseOptimizer() {}
+
+    static void optimize(Path databaseFile) {
+        long startTime = System.nanoTime();
+
+        try (Connection connection = SqliteConnections.open(databaseFile);
+             Statement statement = connection.createStatement()) {
+
+            statement.execute(CREATE_LOOKUP_INDEX);
+            statement.execute("ANALYZE");
+
+            for (String query : INDEXED_QUERIES) {
+                verifyUsesIndex(connection, query);
+            }
+            log.info("Optimized downloaded database in {} ms", (System.nanoTime() - startTime) / 1_000_000);
+        } catch (SQLException e) {
+            log.warn("Failed to optimize downloaded database, lookups may be slower", e);
+        }
+    }
+
+    private static void verifyUsesIndex(Connection connection, String query) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + query);
+             ResultSet resultSet = statement.executeQuery()) {
+
+            while (resultSet.next()) {
+                String detail = resultSet.getString("detail");
+                if (detail != null && detail.startsWith("SCAN")) {
+                    log.warn("Dialog lookup scans instead of searching an index ({}): {}", detail, query);
+                }
+            }
+        }
+    }
+}
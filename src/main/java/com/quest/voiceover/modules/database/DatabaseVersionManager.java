@@ -1,6 +1,10 @@
 package com.quest.voiceover.modules.database;
 
 import com.quest.voiceover.Constants;
+import com.quest.voiceover.utility.HashUtility;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.RuneLite;
 import okhttp3.HttpUrl;
@@ -9,105 +13,486 @@ import okhttp3.Request;
 import okhttp3.Response;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class DatabaseVersionManager {
 
     private static final String DATABASE_FILENAME = "quest_voiceover_v2.db";
     private static final String VERSION_FILENAME = ".version";
+    private static final String LOCK_FILENAME = ".download.lock";
+    private static final String VERSIONED_FILE_PREFIX = "quest_voiceover_v2-";
+    private static final String DATABASE_SUFFIX = ".db";
+    private static final String CORPUS_INDEX_SUFFIX = ".idx";
+    private static final String DOWNLOAD_TEMP_SUFFIX = ".tmp";
+    private static final String CHANGESET_TEMP_SUFFIX = ".delta.tmp";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final int LEASE_ATTEMPTS = 2;
+    private static final String WEAK_ETAG_PREFIX = "W/";
+    private static final int SHORT_VERSION_LENGTH = 7;
+    private static final int ETAG_FILE_ID_LENGTH = 16;
+    private static final long LOCK_POLL_MIN_MS = 250;
+    private static final long LOCK_POLL_MAX_MS = 5_000;
+    private static final long LOCK_WAIT_TIMEOUT_MS = 10 * 60 * 1000;
 
     private static final Path DOWNLOAD_DIR =
         Path.of(RuneLite.RUNELITE_DIR.getPath(), "quest-voiceover");
 
     private static final Path VERSION_FILE = DOWNLOAD_DIR.resolve(VERSION_FILENAME);
-    private static final Path DATABASE_FILE = DOWNLOAD_DIR.resolve(DATABASE_FILENAME);
-    private static final Path DATABASE_TEMP_FILE = DOWNLOAD_DIR.resolve(DATABASE_FILENAME + ".tmp");
+    private static final Path VERSION_TEMP_FILE = DOWNLOAD_DIR.resolve(VERSION_FILENAME + ".tmp");
+    private static final Path LOCK_FILE = DOWNLOAD_DIR.resolve(LOCK_FILENAME);
+    /** Where the database was kept before each version got its own file; still served until the next update. */
+    private static final Path LEGACY_DATABASE_FILE = DOWNLOAD_DIR.resolve(DATABASE_FILENAME);
+
+    private static final AtomicInteger INSTALL_GENERATION = new AtomicInteger();
+
+    /**
+     * A verified, optimized database file prepared next to the installed one, waiting to be
+     * {@link #install installed}. Holds the download lock until it is installed or closed,
+     * so no other client starts the same update in the meantime.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class PreparedDatabase implements Closeable {
+        @Getter
+        private final Path file;
+        @Getter
+        private final String version;
+        private final FileChannel lockChannel;
+
+        @Override
+        public void close() {
+            closeQuietly(lockChannel);
+        }
+    }
+
+    /**
+     * A database file this client has open, pinned together with its version. A shared lock
+     * on the file's {@code .lease} sibling tells other clients sharing the directory that it
+     * is still in use, so installing a newer version there leaves it in place until every
+     * client holding it has moved on or exited. The lock is released with the lease, or by
+     * the OS if the client dies.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class DatabaseLease implements Closeable {
+        @Getter
+        private final Path file;
+        @Getter
+        private final String version;
+        private final FileChannel lockChannel;
+
+        @Override
+        public void close() {
+            closeQuietly(lockChannel);
+        }
+    }
 
     public static String getDatabaseVersion() {
         String version = readVersionFile();
         if (version.isEmpty()) {
             return "Unknown";
         }
-        return version.replace("\"", "").substring(0, 7);
+        return shortVersion(version);
     }
 
-    public static void prepareDatabaseSource(OkHttpClient okHttpClient) {
-        ensureDownloadDirectoryExists();
-        downloadOrUpdateDatabase(okHttpClient);
+    /**
+     * @return the full ETag of the installed database, or an empty string if none is recorded
+     */
+    public static String getDatabaseEtag() {
+        return readVersionFile();
     }
 
-    public static String getDatabasePath() throws FileNotFoundException {
-        if (!Files.exists(DATABASE_FILE)) {
-            throw new FileNotFoundException("Database file not found: " + DATABASE_FILE);
+    /**
+     * The compiled corpus index for a database version. Named after a hash of the full ETag
+     * rather than replaced in place, because a file that is still mapped cannot be replaced
+     * on every platform. Hashing keeps the name valid whatever the ETag holds, such as the
+     * slash of a weak {@code W/"..."} validator.
+     *
+     * @return the index path, or null if {@code databaseEtag} is empty
+     */
+    public static Path getCorpusIndexPath(String databaseEtag) {
+        if (databaseEtag.isEmpty()) {
+            return null;
         }
-        return DATABASE_FILE.toString();
+        return DOWNLOAD_DIR.resolve(VERSIONED_FILE_PREFIX + etagFileId(databaseEtag) + CORPUS_INDEX_SUFFIX);
     }
 
-    private static void ensureDownloadDirectoryExists() {
+    /**
+     * Removes compiled indexes left behind by earlier database versions. Best effort: an
+     * index another client still has mapped is left for a later startup.
+     */
+    public static void deleteStaleCorpusIndexes(Path currentIndex) {
+        deleteStaleVersions(CORPUS_INDEX_SUFFIX, currentIndex);
+    }
+
+    /**
+     * Downloads and installs the latest database straight away. Only meant for when no
+     * database is installed yet; with one in use, {@link #fetchUpdate} prepares the new
+     * version and the caller decides when to {@link #install} it.
+     */
+    public static void prepareDatabaseSource(OkHttpClient okHttpClient) {
+        PreparedDatabase update = fetchUpdate(okHttpClient);
+        if (update == null) {
+            return;
+        }
+
         try {
-            Files.createDirectories(DOWNLOAD_DIR);
+            deleteStaleDatabases(install(update));
         } catch (IOException e) {
-            log.error("Failed to create download directory", e);
+            log.error("Failed to install database", e);
         }
     }
 
-    private static void downloadOrUpdateDatabase(OkHttpClient okHttpClient) {
+    /**
+     * Checks for a newer database and, if there is one, prepares it next to the installed
+     * file without touching the installed file. Waits while another client sharing the
+     * directory is updating.
+     *
+     * @return the prepared database, or null if the installed one is current or the update
+     *         failed
+     */
+    public static PreparedDatabase fetchUpdate(OkHttpClient okHttpClient) {
+        ensureDownloadDirectoryExists();
+
+        FileChannel lockChannel = null;
         try {
-            String currentVersion = readVersionFile();
-            HttpUrl downloadUrl = buildDownloadUrl();
-
-            Request headRequest = new Request.Builder()
-                .url(downloadUrl)
-                .header("If-None-Match", currentVersion)
-                .head()
-                .build();
-
-            try (Response headResponse = okHttpClient.newCall(headRequest).execute()) {
-                if (headResponse.code() == 304) {
-                    return;
+            lockChannel = acquireDownloadLock();
+            PreparedDatabase update = prepareUpdate(okHttpClient, lockChannel);
+            if (update != null) {
+                lockChannel = null;
+            }
+            return update;
+        } catch (IOException e) {
+            log.error("Failed to download or update database", e);
+            return null;
+        } finally {
+            closeQuietly(lockChannel);
+        }
+    }
+
+    /**
+     * Clients sharing the RuneLite directory take turns through a lock file. A client that
+     * finds the lock held polls for it at a growing interval instead of blocking, so the wait
+     * can be interrupted on shutdown, and gives up after a while; its version check then sees
+     * the version the holder installed, so each update is transferred once per machine.
+     */
+    private static FileChannel acquireDownloadLock() throws IOException {
+        FileChannel channel = FileChannel.open(LOCK_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+
+            log.info("Another client is updating the database, waiting for it to finish");
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_TIMEOUT_MS);
+            long pollIntervalMs = LOCK_POLL_MIN_MS;
+            do {
+                if (System.nanoTime() - deadline >= 0) {
+                    throw new IOException("Timed out waiting for another client to finish updating the database");
                 }
+                Thread.sleep(pollIntervalMs);
+                pollIntervalMs = Math.min(pollIntervalMs * 2, LOCK_POLL_MAX_MS);
+            } while (channel.tryLock() == null);
+            return channel;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new InterruptedIOException("Interrupted while waiting for the database download lock");
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            throw new IOException("A database update is already running in this client", e);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static PreparedDatabase prepareUpdate(OkHttpClient okHttpClient, FileChannel lockChannel) throws IOException {
+        String currentVersion = readVersionFile();
+        HttpUrl downloadUrl = buildDownloadUrl();
+
+        Request headRequest = new Request.Builder()
+            .url(downloadUrl)
+            .header("If-None-Match", currentVersion)
+            .head()
+            .build();
+
+        try (Response headResponse = okHttpClient.newCall(headRequest).execute()) {
+            if (headResponse.code() == 304) {
+                return null;
+            }
+
+            String remoteEtag = headResponse.header("ETag");
+            if (remoteEtag == null) {
+                log.warn("No ETag header in remote response");
+                return null;
+            }
+
+            if (!shouldDownload(remoteEtag, currentVersion)) {
+                return null;
+            }
+
+            // Left by an install that could not record its version
+            Path existingFile = getDatabaseFile(remoteEtag);
+            if (Files.exists(existingFile)) {
+                log.info("Database version {} is already in place, only recording it as installed", remoteEtag);
+                return new PreparedDatabase(existingFile, remoteEtag, lockChannel);
+            }
+
+            Path preparedFile = prepareDatabaseFile(okHttpClient, downloadUrl, getInstalledDatabaseFile(), currentVersion, remoteEtag);
+            if (preparedFile == null) {
+                return null;
+            }
 
-                String remoteEtag = headResponse.header("ETag");
-                if (remoteEtag == null) {
-                    log.warn("No ETag header in remote response");
-                    return;
+            DatabaseOptimizer.optimize(preparedFile);
+            return new PreparedDatabase(preparedFile, remoteEtag, lockChannel);
+        }
+    }
+
+    /**
+     * Moves a prepared database to the file named after its version and points
+     * {@code .version} at it. No installed file is ever replaced, because other clients
+     * sharing the directory may still have it open, which makes replacing it fail on
+     * Windows. Earlier versions stay until {@link #deleteStaleDatabases} finds them unleased.
+     *
+     * @return the installed file
+     */
+    public static Path install(PreparedDatabase update) throws IOException {
+        try {
+            Path databaseFile = getDatabaseFile(update.getVersion());
+            if (!update.getFile().equals(databaseFile)) {
+                if (Files.exists(databaseFile)) {
+                    Files.delete(update.getFile());
+                } else {
+                    Files.move(update.getFile(), databaseFile, StandardCopyOption.ATOMIC_MOVE);
                 }
+            }
+            writeVersionFile(update.getVersion());
+            INSTALL_GENERATION.incrementAndGet();
+            log.info("Database updated successfully");
+            return databaseFile;
+        } finally {
+            update.close();
+        }
+    }
 
-                if (shouldDownload(remoteEtag, currentVersion)) {
-                    downloadDatabase(okHttpClient, downloadUrl, remoteEtag);
+    /**
+     * Records that another client sharing the directory installed a new database, which this
+     * client has switched to, so anything derived from the previous file can tell it is stale.
+     */
+    public static void adoptInstalledVersion() {
+        INSTALL_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Leases the installed database. A client that installs a newer version at the same
+     * moment may delete the file between reading {@code .version} and taking the lock, so
+     * the lease is only granted once the file is seen to exist under the lock, and the
+     * version is read again if it is gone.
+     *
+     * @throws FileNotFoundException if no database is installed
+     */
+    public static DatabaseLease leaseInstalledDatabase() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            String version = readVersionFile();
+            Path databaseFile = getInstalledDatabaseFile(version);
+            try {
+                return leaseDatabase(databaseFile, version);
+            } catch (FileNotFoundException e) {
+                if (attempt >= LEASE_ATTEMPTS) {
+                    throw e;
                 }
             }
-        } catch (IOException e) {
-            log.error("Failed to download or update database", e);
         }
     }
 
-    private static boolean shouldDownload(String remoteEtag, String currentVersion) {
-        return !Files.exists(DATABASE_FILE) || !remoteEtag.equals(currentVersion);
+    /**
+     * @throws FileNotFoundException if {@code databaseFile} does not exist once the lease is held
+     */
+    public static DatabaseLease leaseDatabase(Path databaseFile, String version) throws IOException {
+        FileChannel channel = FileChannel.open(leaseFile(databaseFile),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.lock(0, Long.MAX_VALUE, true);
+            if (!Files.exists(databaseFile)) {
+                throw new FileNotFoundException("Database file not found: " + databaseFile);
+            }
+            return new DatabaseLease(databaseFile, version, channel);
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            throw new IOException("Database file " + databaseFile + " is already leased by this client", e);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
     }
 
-    private static void downloadDatabase(OkHttpClient client, HttpUrl url, String version) throws IOException {
-        log.info("Downloading new database version: {}", version);
+    public static boolean isDatabaseInstalled() {
+        return Files.exists(getInstalledDatabaseFile());
+    }
+
+    /**
+     * Incremented every time a new database file is installed, so anything derived from the
+     * previous file can tell it is stale.
+     */
+    public static int getInstallGeneration() {
+        return INSTALL_GENERATION.get();
+    }
+
+    private static Path leaseFile(Path databaseFile) {
+        return databaseFile.resolveSibling(databaseFile.getFileName() + LEASE_SUFFIX);
+    }
+
+    private static Path getDatabaseFile(String databaseEtag) {
+        return DOWNLOAD_DIR.resolve(VERSIONED_FILE_PREFIX + etagFileId(databaseEtag) + DATABASE_SUFFIX);
+    }
 
-        Request request = new Request.Builder().url(url).build();
+    /**
+     * @return the file of the version {@code .version} names, or the legacy file for a
+     *         version installed before each version got its own file
+     */
+    private static Path getInstalledDatabaseFile() {
+        return getInstalledDatabaseFile(readVersionFile());
+    }
+
+    private static Path getInstalledDatabaseFile(String version) {
+        if (!version.isEmpty()) {
+            Path databaseFile = getDatabaseFile(version);
+            if (Files.exists(databaseFile)) {
+                return databaseFile;
+            }
+        }
+        return LEGACY_DATABASE_FILE;
+    }
+
+    /**
+     * Removes every database file other than {@code currentDatabase} that no client holds a
+     * lease on. This client's own lease on an earlier version must be released first. Best
+     * effort: a file still leased or open elsewhere is left for a later update.
+     */
+    public static void deleteStaleDatabases(Path currentDatabase) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DOWNLOAD_DIR, VERSIONED_FILE_PREFIX + "*" + DATABASE_SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(currentDatabase)) {
+                    deleteUnleased(file);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Failed to list stale database files", e);
+        }
+        if (!currentDatabase.equals(LEGACY_DATABASE_FILE) && Files.exists(LEGACY_DATABASE_FILE)) {
+            deleteUnleased(LEGACY_DATABASE_FILE);
+        }
+    }
 
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful() || response.body() == null) {
-                log.error("Failed to download database: {}", response.message());
+    /**
+     * Deletes the file while holding its lease exclusively, so a client leasing it at the
+     * same moment either keeps it or finds it gone once it has the lock.
+     */
+    private static void deleteUnleased(Path databaseFile) {
+        Path leaseFile = leaseFile(databaseFile);
+        try (FileChannel channel = FileChannel.open(leaseFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.tryLock() == null) {
+                log.debug("Database file {} is still in use by another client, leaving it", databaseFile.getFileName());
                 return;
             }
+            Files.deleteIfExists(databaseFile);
+        } catch (IOException | OverlappingFileLockException e) {
+            log.debug("Could not delete stale file {}", databaseFile, e);
+            return;
+        }
+        deleteQuietly(leaseFile);
+    }
 
-            try (InputStream inputStream = response.body().byteStream()) {
-                Files.copy(inputStream, DATABASE_TEMP_FILE, StandardCopyOption.REPLACE_EXISTING);
-                Files.move(DATABASE_TEMP_FILE, DATABASE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-                writeVersionFile(version);
-                log.info("Database updated successfully");
+    private static void deleteStaleVersions(String suffix, Path current) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DOWNLOAD_DIR, VERSIONED_FILE_PREFIX + "*" + suffix)) {
+            for (Path file : files) {
+                if (!file.equals(current)) {
+                    deleteQuietly(file);
+                }
             }
+        } catch (IOException e) {
+            log.debug("Failed to list stale {} files", suffix, e);
+        }
+    }
+
+    private static void ensureDownloadDirectoryExists() {
+        try {
+            Files.createDirectories(DOWNLOAD_DIR);
+        } catch (IOException e) {
+            log.error("Failed to create download directory", e);
+        }
+    }
+
+    private static boolean shouldDownload(String remoteEtag, String currentVersion) {
+        return !isDatabaseInstalled() || !remoteEtag.equals(currentVersion);
+    }
+
+    /**
+     * Prepares {@code remoteEtag} next to {@code installedFile}: from a changeset when one is
+     * published from {@code currentVersion}, otherwise by downloading the whole database.
+     *
+     * @return the prepared file, or null if the download failed verification
+     */
+    static Path prepareDatabaseFile(OkHttpClient client, HttpUrl downloadUrl, Path installedFile,
+                                    String currentVersion, String remoteEtag) throws IOException {
+        Path changesetFile = installedFile.resolveSibling(DATABASE_FILENAME + CHANGESET_TEMP_SUFFIX);
+        if (updateFromChangeset(client, downloadUrl, installedFile, changesetFile, currentVersion, remoteEtag)) {
+            return changesetFile;
+        }
+
+        Path downloadFile = installedFile.resolveSibling(DATABASE_FILENAME + DOWNLOAD_TEMP_SUFFIX);
+        log.info("Downloading new database version: {}", remoteEtag);
+        return DatabaseDownloader.download(client, downloadUrl, remoteEtag, downloadFile) ? downloadFile : null;
+    }
+
+    /**
+     * Brings a copy of the installed database up to {@code remoteEtag} by applying a published
+     * changeset to it, so an update only transfers the rows that changed.
+     *
+     * @return true if the copy was prepared, false if a full download is needed
+     */
+    private static boolean updateFromChangeset(OkHttpClient client, HttpUrl downloadUrl, Path installedFile,
+                                               Path changesetFile, String currentVersion, String remoteEtag)
+        throws IOException {
+        if (currentVersion.isEmpty() || !Files.exists(installedFile)) {
+            return false;
+        }
+
+        DatabaseChangeset changeset = DatabaseChangeset.fetch(client, downloadUrl, currentVersion, shortVersion(currentVersion));
+        if (changeset == null) {
+            return false;
+        }
+        if (!changeset.getToVersion().equals(remoteEtag)) {
+            log.info("Database changeset leads to {}, not to the latest version {}", changeset.getToVersion(), remoteEtag);
+            return false;
+        }
+
+        log.info("Updating database from {} to {} with a changeset", currentVersion, remoteEtag);
+        Files.copy(installedFile, changesetFile, StandardCopyOption.REPLACE_EXISTING);
+        if (!changeset.applyTo(changesetFile)) {
+            Files.deleteIfExists(changesetFile);
+            return false;
         }
+
+        return true;
+    }
+
+    private static String shortVersion(String etag) {
+        String version = etag.startsWith(WEAK_ETAG_PREFIX) ? etag.substring(WEAK_ETAG_PREFIX.length()) : etag;
+        version = version.replace("\"", "");
+        return version.substring(0, Math.min(SHORT_VERSION_LENGTH, version.length()));
+    }
+
+    private static String etagFileId(String etag) {
+        return HashUtility.toSHA256(etag).substring(0, ETAG_FILE_ID_LENGTH);
     }
 
     private static HttpUrl buildDownloadUrl() {
@@ -129,14 +514,32 @@ public class DatabaseVersionManager {
         }
     }
 
-    private static void writeVersionFile(String version) {
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Could not delete stale file {}", file, e);
+        }
+    }
+
+    /**
+     * Written to a temporary file and moved into place, so other clients never read a
+     * partly written version.
+     */
+    private static void writeVersionFile(String version) throws IOException {
+        Files.writeString(VERSION_TEMP_FILE, version);
+        Files.move(VERSION_TEMP_FILE, VERSION_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
         try {
-            Files.writeString(VERSION_FILE, version,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.TRUNCATE_EXISTING);
+            channel.close();
         } catch (IOException e) {
-            log.error("Failed to write version file", e);
+            log.warn("Failed to release the database download lock", e);
         }
     }
 }
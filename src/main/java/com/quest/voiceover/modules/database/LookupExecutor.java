@@ -0,0 +1,62 @@
+package com.quest.voiceover.modules.database;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs dialog lookups on a single dedicated thread, so database queries and fuzzy scans
+ * never stall the client thread or queue behind the shared scheduled executor. Lookups run
+ * one at a time in submission order.
+ */
+@Slf4j
+@Singleton
+public class LookupExecutor {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private ExecutorService executor;
+
+    public <T> CompletableFuture<T> submit(Supplier<T> lookup) {
+        return CompletableFuture.supplyAsync(lookup, getExecutor());
+    }
+
+    /**
+     * Interrupts the running lookup, if any, and waits for it to finish so its connection is
+     * no longer in use when the database is closed.
+     */
+    public synchronized void shutDown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Dialog lookup thread did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(LookupExecutor::newLookupThread);
+            log.debug("Started dialog lookup thread");
+        }
+        return executor;
+    }
+
+    private static Thread newLookupThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "quest-voiceover-lookup");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
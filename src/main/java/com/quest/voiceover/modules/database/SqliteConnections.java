@@ -0,0 +1,36 @@
+package com.quest.voiceover.modules.database;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Opens SQLite connections for the plugin and the database compiler, loading the JDBC driver
+ * on first use.
+ */
+final class SqliteConnections {
+
+    private static final String SQL_PATH_PREFIX = "jdbc:sqlite:";
+    private static final String DRIVER_CLASS = "org.sqlite.JDBC";
+
+    private SqliteConnections() {}
+
+    static Connection open(Path databaseFile) throws SQLException {
+        return open(databaseFile.toString(), new Properties());
+    }
+
+    /**
+     * @param location a file path, or a {@code file:} URI when {@code properties} enable URI
+     *                 filenames
+     */
+    static Connection open(String location, Properties properties) throws SQLException {
+        try {
+            Class.forName(DRIVER_CLASS);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found", e);
+        }
+        return DriverManager.getConnection(SQL_PATH_PREFIX + location, properties);
+    }
+}
@@ -0,0 +1,114 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import com.quest.voiceover.utility.LevenshteinUtility;
+
+/**
+ * Running top-1 state for one fuzzy lookup. Each offered line is scored against a distance
+ * cap derived from the best similarity found so far, so weaker lines are abandoned early.
+ * With a tie margin, lines within the margin of the best are kept as well so the caller
+ * can re-rank them, and the cap is loosened by the margin to find them.
+ */
+final class BestMatchSearch {
+
+    private static final double NEAR_PERFECT_SIMILARITY = 0.98;
+
+    private final String query;
+    private final double threshold;
+    private final double bestSoFar;
+    private final double tieMargin;
+    private final CloseMatches closeMatches;
+    private int bestEntry = -1;
+    private double bestSimilarity;
+
+    BestMatchSearch(String query, double threshold, double bestSimilarity) {
+        this(query, threshold, bestSimilarity, 0);
+    }
+
+    /**
+     * @param bestSimilarity similarity every match must beat
+     */
+    BestMatchSearch(String query, double threshold, double bestSimilarity, double tieMargin) {
+        this.query = query;
+        this.threshold = threshold;
+        this.bestSoFar = bestSimilarity;
+        this.tieMargin = tieMargin;
+        this.closeMatches = tieMargin > 0 ? new CloseMatches(tieMargin) : null;
+        this.bestSimilarity = bestSimilarity;
+    }
+
+    String query() {
+        return query;
+    }
+
+    double minimumSimilarity() {
+        return Math.max(Math.max(threshold, bestSoFar), bestSimilarity - tieMargin);
+    }
+
+    boolean isSettled() {
+        return bestSimilarity >= NEAR_PERFECT_SIMILARITY;
+    }
+
+    boolean hasMatch() {
+        return bestEntry >= 0;
+    }
+
+    int bestEntry() {
+        return bestEntry;
+    }
+
+    double bestSimilarity() {
+        return bestSimilarity;
+    }
+
+    /**
+     * @return the lines within the tie margin of the best, or null without a tie margin
+     */
+    CloseMatches closeMatches() {
+        return closeMatches;
+    }
+
+    /**
+     * @return an independent search for the same query, starting from this search's best
+     */
+    BestMatchSearch fork() {
+        BestMatchSearch fork = new BestMatchSearch(query, threshold, bestSoFar, tieMargin);
+        fork.bestSimilarity = bestSimilarity;
+        return fork;
+    }
+
+    void merge(BestMatchSearch other) {
+        if (other.hasMatch() && other.bestSimilarity > bestSimilarity) {
+            bestSimilarity = other.bestSimilarity;
+            bestEntry = other.bestEntry;
+        }
+        if (closeMatches != null) {
+            closeMatches.addAll(other.closeMatches);
+        }
+    }
+
+    void offer(int entry, CharSequence text) {
+        int maxLength = Math.max(query.length(), text.length());
+        int maxDistance = LevenshteinUtility.maxDistanceFor(minimumSimilarity(), maxLength);
+        int distance = LevenshteinUtility.boundedDistance(text, query, maxDistance);
+        if (distance <= maxDistance) {
+            offerDistance(entry, text.length(), distance);
+        }
+    }
+
+    /**
+     * Records a line whose exact distance to the query is already known.
+     */
+    void offerDistance(int entry, int textLength, int distance) {
+        double similarity = LevenshteinUtility.similarityFromDistance(distance, Math.max(query.length(), textLength));
+        if (similarity < threshold || similarity <= bestSoFar) {
+            return;
+        }
+        if (similarity > bestSimilarity) {
+            bestSimilarity = similarity;
+            bestEntry = entry;
+        }
+        if (closeMatches != null) {
+            closeMatches.add(entry, similarity);
+        }
+    }
+}
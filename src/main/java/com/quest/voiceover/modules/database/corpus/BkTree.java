@@ -0,0 +1,127 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import com.quest.voiceover.utility.LevenshteinUtility;
+
+import java.util.Random;
+
+/**
+ * Burkhard-Keller tree over one speaker's lines. Each child hangs off its parent by their
+ * exact edit distance, so a radius query only descends into children whose edge lies within
+ * the radius of the query's distance to the parent (triangle inequality). Nodes are stored
+ * as parallel arrays with first-child/next-sibling links. Lines with identical text are
+ * stored once under the lowest entry index, matching the first-wins behaviour of the exact
+ * index whatever order they were inserted in.
+ */
+final class BkTree {
+
+    private static final int NONE = -1;
+
+    private final int[] nodeEntries;
+    private final int[] edgeDistances;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int nodeCount;
+
+    private BkTree(int[] nodeEntries, int[] edgeDistances, int[] firstChildren, int[] nextSiblings, int nodeCount) {
+        this.nodeEntries = nodeEntries;
+        this.edgeDistances = edgeDistances;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Entries arrive sorted by length, which would put the shortest line at the root and
+     * grow a lopsided tree, so they are inserted in a fixed shuffled order instead.
+     */
+    static BkTree build(int[] entries, TextSlab texts) {
+        int[] insertionOrder = entries.clone();
+        Random random = new Random(entries.length);
+        for (int index = insertionOrder.length - 1; index > 0; index--) {
+            int swapIndex = random.nextInt(index + 1);
+            int swap = insertionOrder[index];
+            insertionOrder[index] = insertionOrder[swapIndex];
+            insertionOrder[swapIndex] = swap;
+        }
+
+        int[] nodeEntries = new int[entries.length];
+        int[] edgeDistances = new int[entries.length];
+        int[] firstChildren = new int[entries.length];
+        int[] nextSiblings = new int[entries.length];
+        int nodeCount = 0;
+
+        for (int entry : insertionOrder) {
+            CharSequence text = texts.get(entry);
+            int parent = nodeCount == 0 ? NONE : 0;
+            int edge = 0;
+
+            while (parent != NONE) {
+                edge = LevenshteinUtility.distance(texts.get(nodeEntries[parent]), text);
+                if (edge == 0) {
+                    break;
+                }
+
+                int child = firstChildren[parent];
+                while (child != NONE && edgeDistances[child] != edge) {
+                    child = nextSiblings[child];
+                }
+                if (child == NONE) {
+                    break;
+                }
+                parent = child;
+            }
+
+            if (parent != NONE && edge == 0) {
+                nodeEntries[parent] = Math.min(nodeEntries[parent], entry);
+                continue;
+            }
+
+            int node = nodeCount++;
+            nodeEntries[node] = entry;
+            edgeDistances[node] = edge;
+            firstChildren[node] = NONE;
+            nextSiblings[node] = NONE;
+            if (parent != NONE) {
+                nextSiblings[node] = firstChildren[parent];
+                firstChildren[parent] = node;
+            }
+        }
+
+        return new BkTree(nodeEntries, edgeDistances, firstChildren, nextSiblings, nodeCount);
+    }
+
+    long heapBytes() {
+        return Footprint.intArray(nodeEntries.length) * 4;
+    }
+
+    /**
+     * Visits every line within the search radius of the query. The radius is the largest
+     * distance at which a line can still reach the search's minimum similarity, and it
+     * shrinks as better matches are found.
+     */
+    void search(BestMatchSearch search, TextSlab texts) {
+        if (nodeCount == 0) {
+            return;
+        }
+
+        String query = search.query();
+        int[] pending = new int[nodeCount];
+        int pendingCount = 0;
+        pending[pendingCount++] = 0;
+
+        while (pendingCount > 0 && !search.isSettled()) {
+            int node = pending[--pendingCount];
+            CharSequence text = texts.get(nodeEntries[node]);
+            int distance = LevenshteinUtility.distance(text, query);
+
+            search.offerDistance(nodeEntries[node], text.length(), distance);
+
+            int radius = LevenshteinUtility.maxDistanceForQuery(search.minimumSimilarity(), query.length());
+            for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                if (Math.abs(edgeDistances[child] - distance) <= radius) {
+                    pending[pendingCount++] = child;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import java.util.Arrays;
+
+/**
+ * Lines scored within {@code tieMargin} of the best similarity seen so far, in the order
+ * they were offered. Lines that fall out of the margin as the best improves are dropped
+ * whenever the arrays fill up, and once more when the list is read.
+ */
+final class CloseMatches {
+
+    private final double tieMargin;
+    private int[] entries = new int[8];
+    private double[] similarities = new double[8];
+    private int size;
+    private double bestSimilarity = -1;
+
+    CloseMatches(double tieMargin) {
+        this.tieMargin = tieMargin;
+    }
+
+    void add(int entry, double similarity) {
+        if (similarity < bestSimilarity - tieMargin) {
+            return;
+        }
+        bestSimilarity = Math.max(bestSimilarity, similarity);
+
+        if (size == entries.length) {
+            retainWithinMargin();
+        }
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            similarities = Arrays.copyOf(similarities, size * 2);
+        }
+        entries[size] = entry;
+        similarities[size] = similarity;
+        size++;
+    }
+
+    void addAll(CloseMatches other) {
+        for (int index = 0; index < other.size; index++) {
+            add(other.entries[index], other.similarities[index]);
+        }
+    }
+
+    int size() {
+        retainWithinMargin();
+        return size;
+    }
+
+    int entry(int index) {
+        return entries[index];
+    }
+
+    double similarity(int index) {
+        return similarities[index];
+    }
+
+    private void retainWithinMargin() {
+        double floor = bestSimilarity - tieMargin;
+        int retained = 0;
+        for (int index = 0; index < size; index++) {
+            if (similarities[index] >= floor) {
+                entries[retained] = entries[index];
+                similarities[retained] = similarities[index];
+                retained++;
+            }
+        }
+        size = retained;
+    }
+}
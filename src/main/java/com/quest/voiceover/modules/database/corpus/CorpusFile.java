@@ -0,0 +1,212 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary file holding a compiled corpus, read back through a read-only memory mapping.
+ *
+ * <p>Layout: a 16-byte header (magic, format version, CRC32 of everything after the
+ * header), then the database ETag the corpus was compiled from, the byte order text slabs
+ * were written in, and the corpus sections. A file written by another format version, for
+ * another database version, on a machine of the other byte order, or failing its checksum
+ * is reported as stale so the caller rebuilds it.
+ */
+final class CorpusFile {
+
+    private static final int MAGIC = 0x51564958;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    private static final int CHECKSUM_OFFSET = 8;
+
+    interface Body {
+        void write(Writer out) throws IOException;
+    }
+
+    private CorpusFile() {}
+
+    /**
+     * Writes to a temporary file first and moves it into place, so readers never see a
+     * partial file.
+     */
+    static void write(Path file, String databaseVersion, Body body) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 checksum = new CRC32();
+
+        try (OutputStream fileOut = Files.newOutputStream(tempFile)) {
+            fileOut.write(new byte[HEADER_BYTES]);
+            DataOutputStream payload = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(fileOut, checksum)));
+            Writer out = new Writer(payload);
+            out.writeString(databaseVersion);
+            out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+            body.write(out);
+            payload.flush();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(checksum.getValue()).flip();
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            channel.write(header, 0);
+        }
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return a reader positioned at the first corpus section, or null if the file is
+     *         missing or stale
+     */
+    static Reader open(Path file, String databaseVersion) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT_VERSION) {
+            return null;
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(mapped.duplicate().position(HEADER_BYTES));
+        if (checksum.getValue() != mapped.getLong(CHECKSUM_OFFSET)) {
+            return null;
+        }
+
+        Reader in = new Reader(mapped.duplicate().position(HEADER_BYTES));
+        if (!in.readString().equals(databaseVersion)
+            || in.readBoolean() != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)) {
+            return null;
+        }
+        return in;
+    }
+
+    static final class Writer {
+        private final DataOutputStream out;
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        void writeIntArray(int[] values) throws IOException {
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        void writeLongArray(long[] values) throws IOException {
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeStrings(String[] values) throws IOException {
+            out.writeInt(values.length);
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        void writeBytes(ByteBuffer bytes) throws IOException {
+            ByteBuffer source = bytes.duplicate().clear();
+            out.writeInt(source.remaining());
+            byte[] chunk = new byte[8192];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    static final class Reader {
+        private final ByteBuffer buffer;
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        int[] readIntArray() {
+            int[] values = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Integer.BYTES);
+            return values;
+        }
+
+        long[] readLongArray() {
+            long[] values = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(values);
+            buffer.position(buffer.position() + values.length * Long.BYTES);
+            return values;
+        }
+
+        String readString() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String[] readStrings() {
+            String[] values = new String[buffer.getInt()];
+            for (int index = 0; index < values.length; index++) {
+                values[index] = readString();
+            }
+            return values;
+        }
+
+        /**
+         * @return a view of the next bytes in the mapping itself, without copying them
+         */
+        ByteBuffer readBytes() {
+            int length = buffer.getInt();
+            ByteBuffer section = buffer.duplicate();
+            section.limit(section.position() + length);
+            buffer.position(buffer.position() + length);
+            return section.slice();
+        }
+    }
+}
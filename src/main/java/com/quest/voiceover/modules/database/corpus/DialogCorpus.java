@@ -0,0 +1,702 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import com.quest.voiceover.utility.LevenshteinUtility;
+import com.quest.voiceover.utility.TextUtility;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory copy of the dialogs table. Loaded once per database version so
+ * dialog lookups never touch SQLite on the client thread. Entries are addressed by
+ * their index into the parallel columns: speakers and quests as ids into small interned
+ * dictionaries, uris and texts packed into off-heap {@link TextSlab}s. The exact and uri
+ * indexes hold entry ids only and compare against the slabs, so no per-line strings stay
+ * on the heap. A built corpus can be {@link #save saved} to a compiled index file and
+ * {@link #open mapped} back on later startups.
+ */
+public final class DialogCorpus {
+
+    private static final String LOAD_QUERY = "SELECT character, quest, uri, text FROM dialogs ORDER BY rowid";
+    private static final int[] NO_ENTRIES = new int[0];
+    private static final int NO_QUEST = -1;
+    private static final int NOT_FOUND = -1;
+    private static final int MIN_INDEXED_LINES = 64;
+    private static final int FUZZY_SHORTLIST_SIZE = 32;
+    private static final int MIN_TOKEN_MATCH_WORDS = 4;
+    private static final double TOKEN_TIE_MARGIN = 0.1;
+    private static final int CONVERSATION_LOOKAHEAD = 4;
+
+    private final int[] characterIds;
+    private final String[] characterNames;
+    private final Map<String, Integer> characterIdsByName;
+    private final int[] questIds;
+    private final String[] questNames;
+    private final TextSlab uris;
+    private final TextSlab texts;
+    /** Hash of each line's normalized text, so probes only normalize a line whose hash already matches. */
+    private final int[] normalizedHashes;
+    private final EntryHashTable exactIndex;
+    private final EntryHashTable normalizedIndex;
+    private final EntryHashTable entryByUri;
+    private final Map<String, int[]> entriesByCharacter;
+    private final Map<String, Map<String, int[]>> entriesByCharacterAndQuest;
+    private final Map<String, TrigramIndex> trigramIndexes;
+    private final TokenIndex tokenIndex;
+    private volatile Map<String, BkTree> bkTrees;
+
+    private DialogCorpus(int[] characterIds, String[] characterNames, int[] questIds, String[] questNames,
+                         TextSlab uris, TextSlab texts, int[] normalizedHashes, EntryHashTable exactIndex,
+                         EntryHashTable normalizedIndex, EntryHashTable entryByUri, int[][] entriesByCharacterId, Map<String, TrigramIndex> trigramIndexes,
+                         TokenIndex tokenIndex) {
+        this.characterIds = characterIds;
+        this.characterNames = characterNames;
+        this.questIds = questIds;
+        this.questNames = questNames;
+        this.uris = uris;
+        this.texts = texts;
+        this.normalizedHashes = normalizedHashes;
+        this.exactIndex = exactIndex;
+        this.normalizedIndex = normalizedIndex;
+        this.entryByUri = entryByUri;
+        this.trigramIndexes = Collections.unmodifiableMap(trigramIndexes);
+        this.tokenIndex = tokenIndex;
+
+        Map<String, Integer> idsByName = new HashMap<>(characterNames.length * 2);
+        Map<String, int[]> byCharacter = new HashMap<>(characterNames.length * 2);
+        Map<String, Map<String, int[]>> byCharacterAndQuest = new HashMap<>(characterNames.length * 2);
+        for (int characterId = 0; characterId < characterNames.length; characterId++) {
+            idsByName.put(characterNames[characterId], characterId);
+            byCharacter.put(characterNames[characterId], entriesByCharacterId[characterId]);
+            byCharacterAndQuest.put(characterNames[characterId], groupByQuest(entriesByCharacterId[characterId]));
+        }
+        this.characterIdsByName = Collections.unmodifiableMap(idsByName);
+        this.entriesByCharacter = Collections.unmodifiableMap(byCharacter);
+        this.entriesByCharacterAndQuest = Collections.unmodifiableMap(byCharacterAndQuest);
+    }
+
+    private static DialogCorpus build(int[] characterIds, Interner characters, int[] questIds, Interner quests,
+                                      TextSlab uris, TextSlab texts) {
+        int size = texts.size();
+        EntryHashTable exactIndex = new EntryHashTable(size);
+        EntryHashTable normalizedIndex = new EntryHashTable(size);
+        EntryHashTable entryByUri = new EntryHashTable(size);
+
+        String[] normalizedTexts = new String[size];
+        int[] normalizedHashes = new int[size];
+        List<List<Integer>> grouped = new ArrayList<>();
+        for (int entry = 0; entry < size; entry++) {
+            int characterId = characterIds[entry];
+            int entryId = entry;
+
+            exactIndex.putIfAbsent(exactHash(characterId, texts.hash(entry)), entry,
+                other -> characterIds[other] == characterId && texts.contentEquals(other, texts.get(entryId)));
+
+            normalizedTexts[entry] = TextUtility.normalizeForLookup(texts.get(entry));
+            normalizedHashes[entry] = normalizedTexts[entry].hashCode();
+            if (!normalizedTexts[entry].isEmpty()) {
+                normalizedIndex.putIfAbsent(exactHash(characterId, normalizedTexts[entry].hashCode()), entry,
+                    other -> characterIds[other] == characterId && normalizedTexts[other].equals(normalizedTexts[entryId]));
+            }
+
+            if (!uris.isNull(entry)) {
+                entryByUri.putIfAbsent(uris.hash(entry), entry, other -> uris.contentEquals(other, uris.get(entryId)));
+            }
+
+            while (grouped.size() <= characterId) {
+                grouped.add(new ArrayList<>());
+            }
+            grouped.get(characterId).add(entry);
+        }
+
+        String[] characterNames = characters.names.toArray(new String[0]);
+        int[][] entriesByCharacterId = new int[characterNames.length][];
+        Map<String, TrigramIndex> trigramIndexes = new HashMap<>();
+        Comparator<Integer> byLength = Comparator.comparingInt(texts::length);
+        for (int characterId = 0; characterId < grouped.size(); characterId++) {
+            List<Integer> group = grouped.get(characterId);
+            group.sort(byLength);
+            int[] entries = group.stream().mapToInt(Integer::intValue).toArray();
+            entriesByCharacterId[characterId] = entries;
+
+            if (entries.length >= MIN_INDEXED_LINES) {
+                trigramIndexes.put(characterNames[characterId], TrigramIndex.build(entries, texts));
+            }
+        }
+
+        return new DialogCorpus(characterIds, characterNames, questIds, quests.names.toArray(new String[0]),
+            uris, texts, normalizedHashes, exactIndex, normalizedIndex, entryByUri, entriesByCharacterId,
+            trigramIndexes, TokenIndex.build(texts));
+    }
+
+    public static DialogCorpus load(Connection connection) throws SQLException {
+        Interner characters = new Interner();
+        Interner quests = new Interner();
+        int[] characterIds = new int[1024];
+        int[] questIds = new int[1024];
+        TextSlab.Builder uris = new TextSlab.Builder();
+        TextSlab.Builder texts = new TextSlab.Builder();
+        int size = 0;
+
+        try (PreparedStatement statement = connection.prepareStatement(LOAD_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+
+            while (resultSet.next()) {
+                String character = resultSet.getString("character");
+                String text = resultSet.getString("text");
+                if (character == null || text == null) {
+                    continue;
+                }
+
+                if (size == characterIds.length) {
+                    characterIds = Arrays.copyOf(characterIds, size * 2);
+                    questIds = Arrays.copyOf(questIds, size * 2);
+                }
+
+                String quest = resultSet.getString("quest");
+                characterIds[size] = characters.intern(character);
+                questIds[size] = quest == null ? NO_QUEST : quests.intern(quest);
+                uris.add(resultSet.getString("uri"));
+                texts.add(text);
+                size++;
+            }
+        }
+
+        return build(Arrays.copyOf(characterIds, size), characters, Arrays.copyOf(questIds, size), quests,
+            uris.build(), texts.build());
+    }
+
+    /**
+     * Compiles the corpus into {@code indexFile} so later startups can {@link #open} it
+     * instead of reading and indexing the dialogs table again. BK-trees are not stored;
+     * they are optional and built on demand.
+     */
+    public void save(Path indexFile, String databaseVersion) throws IOException {
+        CorpusFile.write(indexFile, databaseVersion, out -> {
+            out.writeStrings(characterNames);
+            out.writeStrings(questNames);
+            out.writeIntArray(characterIds);
+            out.writeIntArray(questIds);
+            uris.writeTo(out);
+            texts.writeTo(out);
+            out.writeIntArray(normalizedHashes);
+            exactIndex.writeTo(out);
+            normalizedIndex.writeTo(out);
+            entryByUri.writeTo(out);
+            for (String characterName : characterNames) {
+                out.writeIntArray(entriesByCharacter.get(characterName));
+                TrigramIndex trigramIndex = trigramIndexes.get(characterName);
+                out.writeBoolean(trigramIndex != null);
+                if (trigramIndex != null) {
+                    trigramIndex.writeTo(out);
+                }
+            }
+            tokenIndex.writeTo(out);
+        });
+    }
+
+    /**
+     * Maps a corpus compiled by {@link #save}. The text columns are read straight from the
+     * mapping; the smaller tables are copied onto the heap.
+     *
+     * @return the corpus, or null if the file is missing or was not compiled from
+     *         {@code databaseVersion} by this version of the plugin
+     */
+    public static DialogCorpus open(Path indexFile, String databaseVersion) throws IOException {
+        CorpusFile.Reader in = CorpusFile.open(indexFile, databaseVersion);
+        if (in == null) {
+            return null;
+        }
+
+        String[] characterNames = in.readStrings();
+        String[] questNames = in.readStrings();
+        int[] characterIds = in.readIntArray();
+        int[] questIds = in.readIntArray();
+        TextSlab uris = TextSlab.readFrom(in);
+        TextSlab texts = TextSlab.readFrom(in);
+        int[] normalizedHashes = in.readIntArray();
+        EntryHashTable exactIndex = EntryHashTable.readFrom(in);
+        EntryHashTable normalizedIndex = EntryHashTable.readFrom(in);
+        EntryHashTable entryByUri = EntryHashTable.readFrom(in);
+
+        int[][] entriesByCharacterId = new int[characterNames.length][];
+        Map<String, TrigramIndex> trigramIndexes = new HashMap<>();
+        for (int characterId = 0; characterId < characterNames.length; characterId++) {
+            entriesByCharacterId[characterId] = in.readIntArray();
+            if (in.readBoolean()) {
+                trigramIndexes.put(characterNames[characterId], TrigramIndex.readFrom(in));
+            }
+        }
+
+        return new DialogCorpus(characterIds, characterNames, questIds, questNames, uris, texts, normalizedHashes,
+            exactIndex, normalizedIndex, entryByUri, entriesByCharacterId, trigramIndexes, TokenIndex.readFrom(in));
+    }
+
+    public int size() {
+        return texts.size();
+    }
+
+    public int characterCount() {
+        return entriesByCharacter.size();
+    }
+
+    /**
+     * @return the packed text columns, held in direct buffers or a file mapping outside the heap
+     */
+    public long offHeapBytes() {
+        return texts.offHeapBytes() + uris.offHeapBytes();
+    }
+
+    /**
+     * @return an estimate of the heap held by the columns, dictionaries and indexes
+     */
+    public long heapBytes() {
+        long bytes = Footprint.intArray(characterIds.length) + Footprint.intArray(questIds.length)
+            + Footprint.intArray(normalizedHashes.length)
+            + texts.heapBytes() + uris.heapBytes()
+            + exactIndex.heapBytes() + normalizedIndex.heapBytes() + entryByUri.heapBytes()
+            + tokenIndex.heapBytes()
+            + Footprint.hashMap(characterNames.length) + Footprint.hashMap(entriesByCharacter.size());
+
+        for (String name : characterNames) {
+            bytes += Footprint.string(name);
+        }
+        for (String name : questNames) {
+            bytes += Footprint.string(name);
+        }
+        for (int[] entries : entriesByCharacter.values()) {
+            bytes += Footprint.intArray(entries.length);
+        }
+        for (Map<String, int[]> byQuest : entriesByCharacterAndQuest.values()) {
+            bytes += Footprint.hashMap(byQuest.size());
+            for (int[] entries : byQuest.values()) {
+                bytes += Footprint.intArray(entries.length);
+            }
+        }
+        for (TrigramIndex trigramIndex : trigramIndexes.values()) {
+            bytes += trigramIndex.heapBytes();
+        }
+        Map<String, BkTree> trees = bkTrees;
+        if (trees != null) {
+            for (BkTree tree : trees.values()) {
+                bytes += tree.heapBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Looks the line up verbatim, then by its {@link TextUtility#normalizeForLookup normalized}
+     * form, so lines differing from the transcript only in case, punctuation or spacing still
+     * resolve without a fuzzy search. Lines that normalize to nothing (bare punctuation) only
+     * match verbatim.
+     */
+    public DialogMatch findExact(String characterName, String dialogText) {
+        Integer characterId = characterIdsByName.get(characterName);
+        if (characterId == null) {
+            return null;
+        }
+
+        int entry = exactIndex.find(exactHash(characterId, dialogText.hashCode()),
+            candidate -> characterIds[candidate] == characterId && texts.contentEquals(candidate, dialogText));
+        if (entry == NOT_FOUND) {
+            String normalizedText = TextUtility.normalizeForLookup(dialogText);
+            if (!normalizedText.isEmpty()) {
+                entry = normalizedIndex.find(exactHash(characterId, normalizedText.hashCode()),
+                    candidate -> characterIds[candidate] == characterId && normalizedEquals(candidate, normalizedText));
+            }
+        }
+        return entry == NOT_FOUND ? null : toMatch(entry, 1.0);
+    }
+
+    /**
+     * Checks the few lines that follow {@code previous} in the dialogs table, within the same
+     * quest, for the speaker's next line. Conversations are stored in order, so clicking
+     * through one usually lands here without a speaker-wide search.
+     *
+     * <p>Only a verbatim or normalized match, or a line at or above {@code threshold}, is
+     * returned. The threshold is meant to be near-perfect: a looser neighbour would be taken
+     * over a better line elsewhere, so anything below it is left to the full search.
+     *
+     * @return the first verbatim or normalized match, else the closest line at or above the
+     *         threshold, or null
+     */
+    public DialogMatch findNextInConversation(DialogMatch previous, String characterName, String dialogText,
+                                              double threshold) {
+        String previousUri = previous.getUri();
+        Integer characterId = characterIdsByName.get(characterName);
+        if (previousUri == null || characterId == null) {
+            return null;
+        }
+
+        int previousEntry = entryByUri.find(previousUri.hashCode(), candidate -> uris.contentEquals(candidate, previousUri));
+        if (previousEntry == NOT_FOUND) {
+            return null;
+        }
+
+        int questId = questIds[previousEntry];
+        String normalizedText = TextUtility.normalizeForLookup(dialogText);
+        BestMatchSearch search = new BestMatchSearch(dialogText, threshold, -1);
+        int lastEntry = Math.min(texts.size() - 1, previousEntry + CONVERSATION_LOOKAHEAD);
+
+        for (int entry = previousEntry + 1; entry <= lastEntry && questIds[entry] == questId; entry++) {
+            if (characterIds[entry] != characterId) {
+                continue;
+            }
+            if (texts.contentEquals(entry, dialogText)
+                || !normalizedText.isEmpty() && normalizedEquals(entry, normalizedText)) {
+                return toMatch(entry, 1.0);
+            }
+            search.offer(entry, texts.get(entry));
+        }
+        return search.hasMatch() ? toMatch(search.bestEntry(), search.bestSimilarity()) : null;
+    }
+
+    public DialogMatch findBestMatch(String characterName, String dialogText, FuzzySearchOptions options) {
+        return findBestMatch(characterName, dialogText, options, null);
+    }
+
+    /**
+     * Finds the most similar line at or above the threshold that beats {@code bestSoFar}.
+     *
+     * <p>Lines are compared character by character: speakers with many lines are narrowed
+     * through the index selected in {@code options}; otherwise, and while a BK-tree is still
+     * being built, the length-sorted lines are scanned outwards from the query length until
+     * the length difference alone rules out both directions. Scans over large candidate sets
+     * are split across the parallel scanner. For queries of several words, every line within
+     * a margin of the best character-level score is then re-ranked word by word, since wiki
+     * transcripts mostly differ from in-game text by whole-word substitutions.
+     *
+     * @return the better match, or {@code bestSoFar} if no candidate beats it
+     */
+    public DialogMatch findBestMatch(String characterName, String dialogText, FuzzySearchOptions options,
+                                     DialogMatch bestSoFar) {
+        double bestSimilarity = bestSoFar != null ? bestSoFar.getSimilarity() : -1;
+        DialogMatch match = searchCandidates(getCandidates(characterName), characterName, dialogText, options, bestSimilarity);
+        return match != null ? match : bestSoFar;
+    }
+
+    /**
+     * Searches the speaker's lines one tier of quests at a time, stopping at the first tier
+     * with a line at or above the threshold, and falls back to all of the speaker's lines.
+     * Tiers are scanned directly rather than through the speaker-wide indexes, so a tier
+     * holding most of the speaker's lines ends the tiering early: the full search costs
+     * little more and can use the indexes.
+     *
+     * @param questTiers quest names in priority order; a quest belongs to at most one tier
+     */
+    public DialogMatch findBestMatchByQuestTier(String characterName, String dialogText, FuzzySearchOptions options,
+                                                List<Set<String>> questTiers) {
+        int speakerLines = getCandidates(characterName).length;
+        for (Set<String> quests : questTiers) {
+            int[] candidates = getCandidatesInQuests(characterName, quests);
+            if (candidates.length == 0) {
+                continue;
+            }
+            if (candidates.length * 2 > speakerLines) {
+                break;
+            }
+
+            DialogMatch match = searchCandidates(candidates, null, dialogText, options, -1);
+            if (match != null) {
+                return match;
+            }
+        }
+        return findBestMatch(characterName, dialogText, options);
+    }
+
+    /**
+     * Builds the optional per-speaker BK-trees. This computes an edit distance per tree level
+     * for every line, so callers run it off the client thread; lookups keep using the other
+     * paths until it finishes.
+     */
+    public void buildBkTrees() {
+        if (bkTrees != null) {
+            return;
+        }
+
+        Map<String, BkTree> trees = new HashMap<>();
+        for (Map.Entry<String, int[]> speaker : entriesByCharacter.entrySet()) {
+            if (speaker.getValue().length >= MIN_INDEXED_LINES) {
+                trees.put(speaker.getKey(), BkTree.build(speaker.getValue(), texts));
+            }
+        }
+        bkTrees = Collections.unmodifiableMap(trees);
+    }
+
+    public boolean hasBkTrees() {
+        return bkTrees != null;
+    }
+
+    /**
+     * @param indexedCharacter speaker whose indexes may stand in for scanning the candidates,
+     *                         or null when the candidates are only part of a speaker's lines
+     * @return the best match above {@code bestSimilarity}, or null
+     */
+    private DialogMatch searchCandidates(int[] candidates, String indexedCharacter, String dialogText,
+                                         FuzzySearchOptions options, double bestSimilarity) {
+        int[] queryTokens = tokenIndex.tokenize(dialogText);
+        boolean rerank = queryTokens.length >= MIN_TOKEN_MATCH_WORDS;
+        BestMatchSearch search = new BestMatchSearch(dialogText, options.getThreshold(), bestSimilarity,
+            rerank ? TOKEN_TIE_MARGIN : 0);
+
+        if (indexedCharacter == null || !searchIndexed(indexedCharacter, options.getMode(), search)) {
+            if (isParallelScan(candidates.length, options)) {
+                scanInParallel(candidates, search, options);
+            } else {
+                scanByLength(candidates, search);
+            }
+        }
+
+        if (!search.hasMatch()) {
+            return null;
+        }
+        if (!rerank) {
+            return toMatch(search.bestEntry(), search.bestSimilarity());
+        }
+        CloseMatches closeMatches = search.closeMatches();
+        int chosen = rerankByWords(closeMatches, queryTokens);
+        return toMatch(closeMatches.entry(chosen), closeMatches.similarity(chosen));
+    }
+
+    /**
+     * Picks the closest line at word level among the character-level near-ties, with
+     * character-level similarity breaking word-level ties.
+     */
+    private int rerankByWords(CloseMatches closeMatches, int[] queryTokens) {
+        int chosen = 0;
+        double chosenWordSimilarity = -1;
+        int size = closeMatches.size();
+        for (int index = 0; index < size; index++) {
+            double wordSimilarity = tokenIndex.similarity(closeMatches.entry(index), queryTokens);
+            boolean better = wordSimilarity > chosenWordSimilarity
+                || wordSimilarity == chosenWordSimilarity && closeMatches.similarity(index) > closeMatches.similarity(chosen);
+            if (better) {
+                chosen = index;
+                chosenWordSimilarity = wordSimilarity;
+            }
+        }
+        return chosen;
+    }
+
+    private boolean searchIndexed(String characterName, FuzzySearchMode mode, BestMatchSearch search) {
+        if (mode == FuzzySearchMode.BK_TREE) {
+            Map<String, BkTree> trees = bkTrees;
+            BkTree tree = trees == null ? null : trees.get(characterName);
+            if (tree != null) {
+                tree.search(search, texts);
+                return true;
+            }
+            return false;
+        }
+
+        if (mode == FuzzySearchMode.TRIGRAM_INDEX) {
+            int[] shortlist = shortlist(characterName, search);
+            if (shortlist != null) {
+                scoreCandidates(shortlist, search);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] shortlist(String characterName, BestMatchSearch search) {
+        TrigramIndex trigramIndex = trigramIndexes.get(characterName);
+        return trigramIndex == null ? null : trigramIndex.shortlist(search.query(), search.minimumSimilarity(), FUZZY_SHORTLIST_SIZE);
+    }
+
+    private void scoreCandidates(int[] candidates, BestMatchSearch search) {
+        for (int entry : candidates) {
+            if (search.isSettled()) {
+                return;
+            }
+            search.offer(entry, texts.get(entry));
+        }
+    }
+
+    private void scanByLength(int[] candidates, BestMatchSearch search) {
+        int queryLength = search.query().length();
+        int right = firstWithLengthAtLeast(candidates, queryLength);
+        int left = right - 1;
+
+        while (!search.isSettled()) {
+            double minimumSimilarity = search.minimumSimilarity();
+            boolean leftOpen = left >= 0 && isLengthReachable(lengthOf(candidates[left]), queryLength, minimumSimilarity);
+            boolean rightOpen = right < candidates.length && isLengthReachable(lengthOf(candidates[right]), queryLength, minimumSimilarity);
+            if (!leftOpen && !rightOpen) {
+                return;
+            }
+
+            boolean takeLeft = leftOpen && (!rightOpen
+                || queryLength - lengthOf(candidates[left]) <= lengthOf(candidates[right]) - queryLength);
+            int entry = takeLeft ? candidates[left--] : candidates[right++];
+            search.offer(entry, texts.get(entry));
+        }
+    }
+
+    /**
+     * Only lines whose length is reachable at the threshold are split across workers. Each
+     * slice keeps its own best and the slices are merged in order, so ties resolve the same
+     * way on every run.
+     */
+    private void scanInParallel(int[] candidates, BestMatchSearch search, FuzzySearchOptions options) {
+        String query = search.query();
+        double minimumSimilarity = search.minimumSimilarity();
+        int from = firstWithLengthAtLeast(candidates, query.length() - LevenshteinUtility.maxDistanceFor(minimumSimilarity, query.length()));
+        int to = firstWithLengthAtLeast(candidates, query.length() + LevenshteinUtility.maxDistanceForQuery(minimumSimilarity, query.length()) + 1);
+        if (from >= to) {
+            return;
+        }
+
+        List<BestMatchSearch> slices = options.getParallelScanner().scoreSlices(candidates, from, to, (slice, start, end) -> {
+            BestMatchSearch sliceSearch = search.fork();
+            for (int index = start; index < end && !sliceSearch.isSettled(); index++) {
+                sliceSearch.offer(slice[index], texts.get(slice[index]));
+            }
+            return sliceSearch;
+        });
+
+        for (BestMatchSearch slice : slices) {
+            search.merge(slice);
+        }
+    }
+
+    private static boolean isParallelScan(int candidateCount, FuzzySearchOptions options) {
+        return options.getParallelScanner() != null && candidateCount >= options.getParallelScanThreshold();
+    }
+
+    private int[] getCandidates(String characterName) {
+        return entriesByCharacter.getOrDefault(characterName, NO_ENTRIES);
+    }
+
+    private int[] getCandidatesInQuests(String characterName, Set<String> quests) {
+        Map<String, int[]> byQuest = entriesByCharacterAndQuest.get(characterName);
+        if (byQuest == null) {
+            return NO_ENTRIES;
+        }
+
+        List<int[]> parts = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<String, int[]> quest : byQuest.entrySet()) {
+            if (quest.getKey() != null && quests.contains(quest.getKey())) {
+                parts.add(quest.getValue());
+                total += quest.getValue().length;
+            }
+        }
+
+        if (parts.size() <= 1) {
+            return parts.isEmpty() ? NO_ENTRIES : parts.get(0);
+        }
+
+        long[] byLength = new long[total];
+        int cursor = 0;
+        for (int[] part : parts) {
+            for (int entry : part) {
+                byLength[cursor++] = ((long) lengthOf(entry) << Integer.SIZE) | entry;
+            }
+        }
+        Arrays.sort(byLength);
+
+        int[] candidates = new int[total];
+        for (int index = 0; index < total; index++) {
+            candidates[index] = (int) byLength[index];
+        }
+        return candidates;
+    }
+
+    /**
+     * Splits a speaker's length-sorted lines by quest, keeping each quest's lines in length
+     * order.
+     */
+    private Map<String, int[]> groupByQuest(int[] entries) {
+        Map<String, List<Integer>> grouped = new HashMap<>();
+        for (int entry : entries) {
+            grouped.computeIfAbsent(questName(entry), key -> new ArrayList<>()).add(entry);
+        }
+
+        Map<String, int[]> byQuest = new HashMap<>(grouped.size() * 2);
+        for (Map.Entry<String, List<Integer>> quest : grouped.entrySet()) {
+            byQuest.put(quest.getKey(), quest.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return Collections.unmodifiableMap(byQuest);
+    }
+
+    private int lengthOf(int entry) {
+        return texts.length(entry);
+    }
+
+    private String questName(int entry) {
+        return questIds[entry] == NO_QUEST ? null : questNames[questIds[entry]];
+    }
+
+    private int firstWithLengthAtLeast(int[] candidates, int length) {
+        int low = 0;
+        int high = candidates.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lengthOf(candidates[middle]) < length) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The length difference is a lower bound on the distance, and it grows faster than the
+     * allowed distance as candidates get further from the query length, so once a candidate
+     * fails this check every candidate beyond it does too.
+     */
+    private static boolean isLengthReachable(int candidateLength, int queryLength, double minimumSimilarity) {
+        int maxLength = Math.max(candidateLength, queryLength);
+        return Math.abs(candidateLength - queryLength) <= LevenshteinUtility.maxDistanceFor(minimumSimilarity, maxLength);
+    }
+
+    /**
+     * Compares the stored hash first, so a line is only normalized again when it is almost
+     * certainly the match.
+     */
+    private boolean normalizedEquals(int entry, String normalizedText) {
+        return normalizedHashes[entry] == normalizedText.hashCode()
+            && normalizedText.equals(TextUtility.normalizeForLookup(texts.get(entry)));
+    }
+
+    private DialogMatch toMatch(int entry, double similarity) {
+        return new DialogMatch(questName(entry), uris.getString(entry), texts.getString(entry), similarity);
+    }
+
+    private static int exactHash(int characterId, int textHash) {
+        return 31 * textHash + characterId;
+    }
+
+    /**
+     * Assigns dense ids to distinct values in first-seen order.
+     */
+    private static final class Interner {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        private int intern(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = names.size();
+                ids.put(value, id);
+                names.add(value);
+            }
+            return id;
+        }
+    }
+}
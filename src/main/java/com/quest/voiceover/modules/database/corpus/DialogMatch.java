@@ -0,0 +1,11 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import lombok.Value;
+
+@Value
+public class DialogMatch {
+    String quest;
+    String uri;
+    String text;
+    double similarity;
+}
@@ -0,0 +1,73 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Open-addressing hash table of entry ids. Keys are never stored: the caller supplies each
+ * key's hash and a predicate telling whether an entry has that key, so lookups compare
+ * against the packed corpus columns instead of keeping a copy of every key on the heap.
+ */
+final class EntryHashTable {
+
+    private static final int EMPTY = -1;
+
+    private final int[] slots;
+    private final int mask;
+
+    EntryHashTable(int expectedEntries) {
+        this(new int[Integer.highestOneBit(Math.max(2, expectedEntries * 2 - 1)) * 2]);
+        Arrays.fill(slots, EMPTY);
+    }
+
+    private EntryHashTable(int[] slots) {
+        this.slots = slots;
+        this.mask = slots.length - 1;
+    }
+
+    /**
+     * Adds {@code entry} unless an entry with the same key is already present, so the first
+     * entry added for a key wins.
+     */
+    void putIfAbsent(int hash, int entry, IntPredicate hasSameKey) {
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            if (slots[slot] == EMPTY) {
+                slots[slot] = entry;
+                return;
+            }
+            if (hasSameKey.test(slots[slot])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the entry with the key, or -1 if there is none
+     */
+    int find(int hash, IntPredicate hasKey) {
+        for (int slot = spread(hash) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hasKey.test(slots[slot])) {
+                return slots[slot];
+            }
+        }
+        return EMPTY;
+    }
+
+    void writeTo(CorpusFile.Writer out) throws IOException {
+        out.writeIntArray(slots);
+    }
+
+    static EntryHashTable readFrom(CorpusFile.Reader in) {
+        return new EntryHashTable(in.readIntArray());
+    }
+
+    long heapBytes() {
+        return Footprint.intArray(slots.length);
+    }
+
+    private static int spread(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+}
@@ -0,0 +1,52 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import java.util.BitSet;
+
+/**
+ * Rough heap sizes for the corpus structures, assuming a 64-bit JVM with compressed
+ * pointers. Only meant for reporting how much memory a loaded corpus holds.
+ */
+final class Footprint {
+
+    private static final long ARRAY_HEADER = 16;
+    private static final long OBJECT_HEADER = 12;
+    private static final long REFERENCE = 4;
+    private static final long HASH_MAP_ENTRY = 32;
+
+    private Footprint() {}
+
+    static long intArray(int length) {
+        return align(ARRAY_HEADER + (long) length * Integer.BYTES);
+    }
+
+    static long longArray(int length) {
+        return align(ARRAY_HEADER + (long) length * Long.BYTES);
+    }
+
+    static long referenceArray(int length) {
+        return align(ARRAY_HEADER + length * REFERENCE);
+    }
+
+    static long bitSet(BitSet bits) {
+        return align(OBJECT_HEADER + REFERENCE + Integer.BYTES * 2) + longArray(bits.size() / Long.SIZE);
+    }
+
+    /**
+     * A Latin-1 string as stored with compact strings.
+     */
+    static long string(String value) {
+        return align(OBJECT_HEADER + REFERENCE + Integer.BYTES + 2) + align(ARRAY_HEADER + value.length());
+    }
+
+    static long hashMap(int entries) {
+        return referenceArray(Integer.highestOneBit(Math.max(1, entries * 2 - 1)) * 2) + entries * HASH_MAP_ENTRY;
+    }
+
+    static long object(int fields) {
+        return align(OBJECT_HEADER + fields * REFERENCE);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
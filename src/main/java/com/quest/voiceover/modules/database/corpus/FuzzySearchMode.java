@@ -0,0 +1,17 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+public enum FuzzySearchMode {
+    TRIGRAM_INDEX("Trigram index"),
+    BK_TREE("BK-tree"),
+    LINEAR_SCAN("Linear scan");
+
+    private final String displayName;
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
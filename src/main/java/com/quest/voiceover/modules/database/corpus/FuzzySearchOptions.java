@@ -0,0 +1,14 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import lombok.Value;
+
+@Value
+public class FuzzySearchOptions {
+    double threshold;
+    FuzzySearchMode mode;
+    /**
+     * Candidate count from which linear scans are split across the parallel scanner.
+     */
+    int parallelScanThreshold;
+    ParallelScanner parallelScanner;
+}
@@ -0,0 +1,85 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits scans over large candidate sets across a small dedicated fork-join pool. The pool
+ * is capped well below the core count and never shares threads with the client or its
+ * scheduled executor; the calling thread scores one slice itself.
+ */
+@Slf4j
+@Singleton
+public class ParallelScanner {
+
+    private static final int MAX_PARALLELISM = 3;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private ForkJoinPool pool;
+
+    public interface SliceScorer<T> {
+        T score(int[] candidates, int from, int to);
+    }
+
+    /**
+     * Scores {@code candidates[from, to)} in contiguous slices, one per available worker
+     * plus the caller, and returns each slice's result in slice order.
+     */
+    public <T> List<T> scoreSlices(int[] candidates, int from, int to, SliceScorer<T> scorer) {
+        ForkJoinPool workers = getPool();
+        int slices = workers.getParallelism() + 1;
+        int sliceSize = (to - from + slices - 1) / slices;
+
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(slices - 1);
+        for (int sliceStart = from + sliceSize; sliceStart < to; sliceStart += sliceSize) {
+            int start = sliceStart;
+            int end = Math.min(to, sliceStart + sliceSize);
+            ForkJoinTask<T> task = ForkJoinTask.adapt(() -> scorer.score(candidates, start, end));
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.invoke();
+            }
+            tasks.add(task);
+        }
+
+        List<T> results = new ArrayList<>(slices);
+        results.add(scorer.score(candidates, from, Math.min(to, from + sliceSize)));
+        for (ForkJoinTask<T> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    public synchronized void shutDown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int parallelism = Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors() / 2));
+            pool = new ForkJoinPool(parallelism, ParallelScanner::newWorkerThread, null, false,
+                0, parallelism, 1, null, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            log.debug("Started parallel scan pool with {} workers", parallelism);
+        }
+        return pool;
+    }
+
+    private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool forkJoinPool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+        thread.setName("quest-voiceover-scan-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
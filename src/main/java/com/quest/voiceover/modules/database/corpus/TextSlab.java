@@ -0,0 +1,231 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * One text column packed end to end into a single direct buffer, addressed by entry through
+ * an offset table. Each value is stored as Latin-1 when every char fits in a byte and as
+ * UTF-16 otherwise, so mostly-English dialog costs a byte per char and no per-line object
+ * headers on the heap. The buffer is either direct or a read-only mapping of a compiled
+ * corpus file. Values are read through {@link CharSequence} views over the buffer;
+ * a {@link String} is only built for values handed out of the corpus.
+ */
+final class TextSlab {
+
+    private final ByteBuffer bytes;
+    private final int[] offsets;
+    private final BitSet wideValues;
+    private final BitSet nullValues;
+
+    private TextSlab(ByteBuffer bytes, int[] offsets, BitSet wideValues, BitSet nullValues) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.wideValues = wideValues;
+        this.nullValues = nullValues;
+    }
+
+    int size() {
+        return offsets.length - 1;
+    }
+
+    boolean isNull(int entry) {
+        return nullValues.get(entry);
+    }
+
+    int length(int entry) {
+        int byteLength = offsets[entry + 1] - offsets[entry];
+        return wideValues.get(entry) ? byteLength / Character.BYTES : byteLength;
+    }
+
+    /**
+     * @return a view over the stored value, or null for a null value
+     */
+    CharSequence get(int entry) {
+        if (nullValues.get(entry)) {
+            return null;
+        }
+        return new Slice(bytes, offsets[entry], length(entry), wideValues.get(entry));
+    }
+
+    String getString(int entry) {
+        CharSequence value = get(entry);
+        return value == null ? null : value.toString();
+    }
+
+    boolean contentEquals(int entry, CharSequence text) {
+        if (nullValues.get(entry) || length(entry) != text.length()) {
+            return false;
+        }
+
+        CharSequence value = get(entry);
+        for (int index = 0; index < text.length(); index++) {
+            if (value.charAt(index) != text.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same value as {@link String#hashCode()} for equal content, computed from the buffer.
+     */
+    int hash(int entry) {
+        CharSequence value = get(entry);
+        return value == null ? 0 : hash(value);
+    }
+
+    static int hash(CharSequence text) {
+        int hash = 0;
+        for (int index = 0; index < text.length(); index++) {
+            hash = 31 * hash + text.charAt(index);
+        }
+        return hash;
+    }
+
+    void writeTo(CorpusFile.Writer out) throws IOException {
+        out.writeBytes(bytes);
+        out.writeIntArray(offsets);
+        out.writeLongArray(wideValues.toLongArray());
+        out.writeLongArray(nullValues.toLongArray());
+    }
+
+    /**
+     * The slab keeps reading from the file mapping rather than copying it.
+     */
+    static TextSlab readFrom(CorpusFile.Reader in) {
+        ByteBuffer bytes = in.readBytes().order(ByteOrder.nativeOrder());
+        int[] offsets = in.readIntArray();
+        BitSet wideValues = BitSet.valueOf(in.readLongArray());
+        BitSet nullValues = BitSet.valueOf(in.readLongArray());
+        return new TextSlab(bytes, offsets, wideValues, nullValues);
+    }
+
+    /**
+     * @return bytes held outside the heap, in a direct buffer or a file mapping
+     */
+    long offHeapBytes() {
+        return bytes.capacity();
+    }
+
+    long heapBytes() {
+        return Footprint.intArray(offsets.length) + Footprint.bitSet(wideValues) + Footprint.bitSet(nullValues);
+    }
+
+    static final class Builder {
+        private byte[] buffer = new byte[64 * 1024];
+        private int[] offsets = new int[1024];
+        private final BitSet wideValues = new BitSet();
+        private final BitSet nullValues = new BitSet();
+        private int size;
+        private int position;
+
+        void add(String value) {
+            if (size + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+
+            if (value == null) {
+                nullValues.set(size);
+            } else if (isLatin1(value)) {
+                ensureCapacity(value.length());
+                for (int index = 0; index < value.length(); index++) {
+                    buffer[position++] = (byte) value.charAt(index);
+                }
+            } else {
+                wideValues.set(size);
+                ensureCapacity(value.length() * Character.BYTES);
+                for (int index = 0; index < value.length(); index++) {
+                    char c = value.charAt(index);
+                    // Written in native order to match the buffer the slab reads from
+                    if (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) {
+                        buffer[position++] = (byte) (c >>> 8);
+                        buffer[position++] = (byte) c;
+                    } else {
+                        buffer[position++] = (byte) c;
+                        buffer[position++] = (byte) (c >>> 8);
+                    }
+                }
+            }
+
+            size++;
+            offsets[size] = position;
+        }
+
+        TextSlab build() {
+            ByteBuffer bytes = ByteBuffer.allocateDirect(position).order(ByteOrder.nativeOrder());
+            bytes.put(buffer, 0, position);
+            bytes.clear();
+            return new TextSlab(bytes, Arrays.copyOf(offsets, size + 1), wideValues, nullValues);
+        }
+
+        private void ensureCapacity(int additional) {
+            if (position + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additional));
+            }
+        }
+
+        private static boolean isLatin1(String value) {
+            for (int index = 0; index < value.length(); index++) {
+                if (value.charAt(index) > 0xFF) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read-only view of one value. Reads use absolute buffer positions, so views are safe
+     * to use from several threads at once.
+     */
+    private static final class Slice implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int start;
+        private final int length;
+        private final boolean wide;
+
+        private Slice(ByteBuffer bytes, int start, int length, boolean wide) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+            this.wide = wide;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return wide
+                ? bytes.getChar(start + index * Character.BYTES)
+                : (char) (bytes.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length || from > to) {
+                throw new IndexOutOfBoundsException("range [" + from + ", " + to + "), length " + length);
+            }
+            int width = wide ? Character.BYTES : 1;
+            return new Slice(bytes, start + from * width, to - from, wide);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int index = 0; index < length; index++) {
+                chars[index] = charAt(index);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import com.quest.voiceover.utility.LevenshteinUtility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every corpus line as a sequence of interned word ids. Wiki transcripts mostly differ from
+ * in-game text by whole-word substitutions, and a line has roughly a fifth as many words as
+ * characters, so edit distance over word ids is both a better signal and a much smaller DP.
+ */
+final class TokenIndex {
+
+    private final Map<String, Integer> wordIds;
+    private final int[][] tokensByEntry;
+
+    private TokenIndex(Map<String, Integer> wordIds, int[][] tokensByEntry) {
+        this.wordIds = wordIds;
+        this.tokensByEntry = tokensByEntry;
+    }
+
+    static TokenIndex build(TextSlab texts) {
+        Map<String, Integer> wordIds = new HashMap<>();
+        int[][] tokensByEntry = new int[texts.size()][];
+
+        for (int entry = 0; entry < texts.size(); entry++) {
+            List<String> words = splitWords(texts.get(entry));
+            int[] tokens = new int[words.size()];
+            for (int index = 0; index < tokens.length; index++) {
+                tokens[index] = wordIds.computeIfAbsent(words.get(index), word -> wordIds.size());
+            }
+            tokensByEntry[entry] = tokens;
+        }
+
+        return new TokenIndex(wordIds, tokensByEntry);
+    }
+
+    /**
+     * Words the corpus has never seen get negative ids, distinct per word, so they never
+     * match a corpus token but still match each other.
+     */
+    int[] tokenize(String text) {
+        List<String> words = splitWords(text);
+        Map<String, Integer> unknownIds = new HashMap<>();
+        int[] tokens = new int[words.size()];
+
+        for (int index = 0; index < tokens.length; index++) {
+            String word = words.get(index);
+            Integer id = wordIds.get(word);
+            tokens[index] = id != null ? id : unknownIds.computeIfAbsent(word, unknown -> -1 - unknownIds.size());
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the word-level similarity between the entry and the tokenized query
+     */
+    double similarity(int entry, int[] queryTokens) {
+        int[] tokens = tokensByEntry[entry];
+        int maxLength = Math.max(queryTokens.length, tokens.length);
+        int distance = LevenshteinUtility.boundedDistance(queryTokens, tokens, maxLength);
+        return LevenshteinUtility.similarityFromDistance(distance, maxLength);
+    }
+
+    /**
+     * Writes the words in id order, then every entry's tokens as one flat array with an
+     * offset table.
+     */
+    void writeTo(CorpusFile.Writer out) throws IOException {
+        String[] words = new String[wordIds.size()];
+        for (Map.Entry<String, Integer> word : wordIds.entrySet()) {
+            words[word.getValue()] = word.getKey();
+        }
+        out.writeStrings(words);
+
+        int[] tokenOffsets = new int[tokensByEntry.length + 1];
+        for (int entry = 0; entry < tokensByEntry.length; entry++) {
+            tokenOffsets[entry + 1] = tokenOffsets[entry] + tokensByEntry[entry].length;
+        }
+        int[] tokens = new int[tokenOffsets[tokensByEntry.length]];
+        for (int entry = 0; entry < tokensByEntry.length; entry++) {
+            System.arraycopy(tokensByEntry[entry], 0, tokens, tokenOffsets[entry], tokensByEntry[entry].length);
+        }
+        out.writeIntArray(tokenOffsets);
+        out.writeIntArray(tokens);
+    }
+
+    static TokenIndex readFrom(CorpusFile.Reader in) {
+        String[] words = in.readStrings();
+        Map<String, Integer> wordIds = new HashMap<>(words.length * 2);
+        for (int id = 0; id < words.length; id++) {
+            wordIds.put(words[id], id);
+        }
+
+        int[] tokenOffsets = in.readIntArray();
+        int[] tokens = in.readIntArray();
+        int[][] tokensByEntry = new int[tokenOffsets.length - 1][];
+        for (int entry = 0; entry < tokensByEntry.length; entry++) {
+            tokensByEntry[entry] = Arrays.copyOfRange(tokens, tokenOffsets[entry], tokenOffsets[entry + 1]);
+        }
+        return new TokenIndex(wordIds, tokensByEntry);
+    }
+
+    long heapBytes() {
+        long bytes = Footprint.referenceArray(tokensByEntry.length) + Footprint.hashMap(wordIds.size());
+        for (int[] tokens : tokensByEntry) {
+            bytes += Footprint.intArray(tokens.length);
+        }
+        for (String word : wordIds.keySet()) {
+            bytes += Footprint.string(word) + Footprint.object(1);
+        }
+        return bytes;
+    }
+
+    /**
+     * Words are maximal runs of letters, digits and apostrophes, lowercased, so surrounding
+     * punctuation and case never count as a word substitution.
+     */
+    private static List<String> splitWords(CharSequence text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+
+        for (int index = 0; index <= text.length(); index++) {
+            char character = index < text.length() ? text.charAt(index) : ' ';
+            if (Character.isLetterOrDigit(character) || character == '\'') {
+                word.append(Character.toLowerCase(character));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,232 @@
+package com.quest.voiceover.modules.database.corpus;
+
+import com.quest.voiceover.utility.LevenshteinUtility;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Inverted index from character trigrams to the lines containing them, covering one
+ * speaker's lines. Postings are stored as a single sorted array sliced per gram, with one
+ * posting per occurrence so shared-gram counts respect multiplicity.
+ *
+ * <p>Grams are taken from lowercased text. Lowercasing never increases the edit distance,
+ * so the q-gram lemma still bounds the raw distance: two strings within distance {@code k}
+ * share at least {@code max(n, m) - q + 1 - k * q} grams.
+ */
+final class TrigramIndex {
+
+    private static final int GRAM_SIZE = 3;
+    private static final int CHAR_BITS = 16;
+
+    private static final ThreadLocal<int[]> SHARED_COUNTS = ThreadLocal.withInitial(() -> new int[256]);
+
+    private final int[] entries;
+    private final int[] lengths;
+    private final long[] gramKeys;
+    private final int[] postingStarts;
+    private final int[] postings;
+
+    private TrigramIndex(int[] entries, int[] lengths, long[] gramKeys, int[] postingStarts, int[] postings) {
+        this.entries = entries;
+        this.lengths = lengths;
+        this.gramKeys = gramKeys;
+        this.postingStarts = postingStarts;
+        this.postings = postings;
+    }
+
+    static TrigramIndex build(int[] entries, TextSlab texts) {
+        int[] lengths = new int[entries.length];
+        long[][] gramsByPosition = new long[entries.length][];
+        int totalGrams = 0;
+
+        for (int position = 0; position < entries.length; position++) {
+            CharSequence text = texts.get(entries[position]);
+            lengths[position] = text.length();
+            gramsByPosition[position] = gramsOf(text);
+            totalGrams += gramsByPosition[position].length;
+        }
+
+        long[] allGrams = new long[totalGrams];
+        int cursor = 0;
+        for (long[] grams : gramsByPosition) {
+            System.arraycopy(grams, 0, allGrams, cursor, grams.length);
+            cursor += grams.length;
+        }
+        long[] gramKeys = distinctSorted(allGrams);
+
+        long[] packed = new long[totalGrams];
+        cursor = 0;
+        for (int position = 0; position < entries.length; position++) {
+            for (long gram : gramsByPosition[position]) {
+                long gramId = Arrays.binarySearch(gramKeys, gram);
+                packed[cursor++] = (gramId << Integer.SIZE) | position;
+            }
+        }
+        Arrays.sort(packed);
+
+        int[] postingStarts = new int[gramKeys.length + 1];
+        int[] postings = new int[totalGrams];
+        for (int index = 0; index < packed.length; index++) {
+            int gramId = (int) (packed[index] >>> Integer.SIZE);
+            postingStarts[gramId + 1]++;
+            postings[index] = (int) packed[index];
+        }
+        for (int gramId = 0; gramId < gramKeys.length; gramId++) {
+            postingStarts[gramId + 1] += postingStarts[gramId];
+        }
+
+        return new TrigramIndex(entries, lengths, gramKeys, postingStarts, postings);
+    }
+
+    /**
+     * Ranks lines by the number of trigrams they share with the query and keeps the best
+     * {@code limit} of those that satisfy the q-gram lemma for the threshold's maximum
+     * distance.
+     *
+     * @return entry ids ordered by shared grams, or null if the lemma cannot rule out lines
+     *         sharing no grams with the query, in which case the caller must scan instead
+     */
+    int[] shortlist(String query, double threshold, int limit) {
+        if (!isLemmaSelective(query.length(), threshold)) {
+            return null;
+        }
+
+        int[] counts = sharedCounts(entries.length);
+        int[] touched = new int[entries.length];
+        int touchedCount = 0;
+
+        long[] queryGrams = gramsOf(query);
+        Arrays.sort(queryGrams);
+
+        for (int queryIndex = 0; queryIndex < queryGrams.length; ) {
+            long gram = queryGrams[queryIndex];
+            int queryOccurrences = 0;
+            while (queryIndex < queryGrams.length && queryGrams[queryIndex] == gram) {
+                queryOccurrences++;
+                queryIndex++;
+            }
+
+            int gramId = Arrays.binarySearch(gramKeys, gram);
+            if (gramId < 0) {
+                continue;
+            }
+
+            int end = postingStarts[gramId + 1];
+            for (int postingIndex = postingStarts[gramId]; postingIndex < end; ) {
+                int position = postings[postingIndex];
+                int lineOccurrences = 0;
+                while (postingIndex < end && postings[postingIndex] == position) {
+                    lineOccurrences++;
+                    postingIndex++;
+                }
+
+                if (counts[position] == 0) {
+                    touched[touchedCount++] = position;
+                }
+                counts[position] += Math.min(queryOccurrences, lineOccurrences);
+            }
+        }
+
+        long[] ranked = new long[touchedCount];
+        int rankedCount = 0;
+        for (int index = 0; index < touchedCount; index++) {
+            int position = touched[index];
+            int shared = counts[position];
+            counts[position] = 0;
+
+            if (shared >= minimumSharedGrams(query.length(), lengths[position], threshold)) {
+                ranked[rankedCount++] = ((long) -shared << Integer.SIZE) | position;
+            }
+        }
+        Arrays.sort(ranked, 0, rankedCount);
+
+        int[] shortlist = new int[Math.min(limit, rankedCount)];
+        for (int index = 0; index < shortlist.length; index++) {
+            shortlist[index] = entries[(int) ranked[index]];
+        }
+        return shortlist;
+    }
+
+    void writeTo(CorpusFile.Writer out) throws IOException {
+        out.writeIntArray(entries);
+        out.writeIntArray(lengths);
+        out.writeLongArray(gramKeys);
+        out.writeIntArray(postingStarts);
+        out.writeIntArray(postings);
+    }
+
+    static TrigramIndex readFrom(CorpusFile.Reader in) {
+        return new TrigramIndex(in.readIntArray(), in.readIntArray(), in.readLongArray(), in.readIntArray(), in.readIntArray());
+    }
+
+    long heapBytes() {
+        return Footprint.intArray(entries.length) + Footprint.intArray(lengths.length) + Footprint.longArray(gramKeys.length)
+            + Footprint.intArray(postingStarts.length) + Footprint.intArray(postings.length);
+    }
+
+    /**
+     * Short queries and low thresholds allow so many edits that a line sharing no grams at
+     * all could still qualify; such lines never appear in any posting list.
+     */
+    private static boolean isLemmaSelective(int queryLength, double threshold) {
+        if (threshold <= 0) {
+            return false;
+        }
+
+        int longestReachable = (int) Math.ceil(queryLength / threshold) + 1;
+        for (int lineLength = queryLength; lineLength <= longestReachable; lineLength++) {
+            if (minimumSharedGrams(queryLength, lineLength, threshold) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the q-gram lemma's lower bound on shared grams for two lengths, or
+     * {@link Integer#MAX_VALUE} when the lengths alone put the pair out of reach.
+     */
+    private static int minimumSharedGrams(int queryLength, int lineLength, double threshold) {
+        int maxLength = Math.max(queryLength, lineLength);
+        int maxDistance = LevenshteinUtility.maxDistanceFor(threshold, maxLength);
+        if (Math.abs(queryLength - lineLength) > maxDistance) {
+            return Integer.MAX_VALUE;
+        }
+        return maxLength - GRAM_SIZE + 1 - maxDistance * GRAM_SIZE;
+    }
+
+    private static long[] gramsOf(CharSequence text) {
+        int gramCount = Math.max(0, text.length() - GRAM_SIZE + 1);
+        long[] grams = new long[gramCount];
+        for (int start = 0; start < gramCount; start++) {
+            long gram = 0;
+            for (int offset = 0; offset < GRAM_SIZE; offset++) {
+                gram = (gram << CHAR_BITS) | Character.toLowerCase(text.charAt(start + offset));
+            }
+            grams[start] = gram;
+        }
+        return grams;
+    }
+
+    private static long[] distinctSorted(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int index = 0; index < sorted.length; index++) {
+            if (index == 0 || sorted[index] != sorted[index - 1]) {
+                sorted[distinct++] = sorted[index];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    private static int[] sharedCounts(int size) {
+        int[] counts = SHARED_COUNTS.get();
+        if (counts.length < size) {
+            counts = new int[size];
+            SHARED_COUNTS.set(counts);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,69 @@
+package com.quest.voiceover.modules.quest;
+
+import net.runelite.api.Client;
+import net.runelite.api.GameState;
+import net.runelite.api.Quest;
+import net.runelite.api.QuestState;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups quest names by how likely the player is to be hearing their dialog: quests in
+ * progress first, then every other quest. Quest states come from client scripts, one per
+ * quest, so this must be called on the client thread. The grouping is kept until a varp or
+ * varbit changes or the player logs in, since quest progress is stored in those, and is
+ * rebuilt at most once per tick.
+ */
+@Singleton
+public class QuestStateManager {
+
+    @Inject
+    private Client client;
+
+    private boolean stale = true;
+    private int snapshotTick = -1;
+    private List<Set<String>> questTiers = Collections.emptyList();
+
+    /**
+     * Marks the grouping for a rebuild on its next use.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return quest names in priority order, or an empty list when not logged in
+     */
+    public List<Set<String>> getQuestTiers() {
+        if (client.getGameState() != GameState.LOGGED_IN) {
+            return Collections.emptyList();
+        }
+
+        int tick = client.getTickCount();
+        if (stale && tick != snapshotTick) {
+            questTiers = snapshotQuestTiers();
+            snapshotTick = tick;
+            stale = false;
+        }
+        return questTiers;
+    }
+
+    private List<Set<String>> snapshotQuestTiers() {
+        Set<String> inProgress = new HashSet<>();
+        Set<String> others = new HashSet<>();
+
+        for (Quest quest : Quest.values()) {
+            if (quest.getState(client) == QuestState.IN_PROGRESS) {
+                inProgress.add(quest.getName());
+            } else {
+                others.add(quest.getName());
+            }
+        }
+        return List.of(inProgress, others);
+    }
+}
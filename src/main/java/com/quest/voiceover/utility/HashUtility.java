@@ -16,17 +16,28 @@ public final class HashUtility {
         return hash(input, "SHA-256");
     }
 
+    /**
+     * A fresh SHA-256 digest for hashing a stream as it is read or written, finished with
+     * {@link #toHex}.
+     */
+    public static MessageDigest newSHA256Digest() {
+        return newDigest("SHA-256");
+    }
+
     private static String hash(String input, String algorithm) {
+        byte[] hashBytes = newDigest(algorithm).digest(input.getBytes(StandardCharsets.UTF_8));
+        return toHex(hashBytes);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
         try {
-            MessageDigest digest = MessageDigest.getInstance(algorithm);
-            byte[] hashBytes = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            return bytesToHex(hashBytes);
+            return MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Hash algorithm not available: " + algorithm, e);
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
+    public static String toHex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder(2 * bytes.length);
         for (byte b : bytes) {
             hexString.append(String.format("%02x", b));
@@ -1,41 +1,373 @@
 package com.quest.voiceover.utility;
 
+import java.util.Arrays;
+
+/**
+ * Edit distance via the Myers/Hyyrö bit-parallel algorithm. The shorter string is encoded
+ * as bit vectors, so each character of the longer string costs one word operation per 64
+ * pattern characters instead of one DP cell per pattern character. Lookup tables live in a
+ * per-thread workspace, so scoring a candidate does not allocate.
+ */
 public class LevenshteinUtility {
 
-    public static int distance(String source, String target) {
-        if (source.length() < target.length()) {
-            String swap = source;
-            source = target;
-            target = swap;
+    private static final int WORD_SIZE = Long.SIZE;
+    private static final int LATIN_RANGE = 256;
+    private static final double SIMILARITY_EPSILON = 1e-9;
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    public static int distance(CharSequence source, CharSequence target) {
+        CharSequence pattern = source.length() <= target.length() ? source : target;
+        CharSequence text = pattern == source ? target : source;
+
+        if (pattern.length() == 0) {
+            return text.length();
         }
 
-        int[] previousRow = new int[target.length() + 1];
-        int[] currentRow = new int[target.length() + 1];
+        Workspace workspace = WORKSPACE.get();
+        int blocks = (pattern.length() + WORD_SIZE - 1) / WORD_SIZE;
+        workspace.encode(pattern, blocks);
+        try {
+            return blocks == 1
+                ? distanceSingleWord(workspace, pattern.length(), text)
+                : distanceBlocked(workspace, pattern.length(), blocks, text);
+        } finally {
+            workspace.reset(pattern);
+        }
+    }
+
+    public static double similarity(CharSequence source, CharSequence target) {
+        int distance = distance(source, target);
+        int maxLength = Math.max(source.length(), target.length());
+        return similarityFromDistance(distance, maxLength);
+    }
+
+    /**
+     * Distance capped at {@code maxDistance}: any pair further apart than that reports
+     * {@code maxDistance + 1}. Pairs whose length difference already exceeds the cap are
+     * rejected without scoring, and narrow caps only evaluate the diagonal band of the DP
+     * matrix, abandoning the pair once a whole row exceeds the cap.
+     */
+    public static int boundedDistance(CharSequence source, CharSequence target, int maxDistance) {
+        CharSequence shorter = source.length() <= target.length() ? source : target;
+        CharSequence longer = shorter == source ? target : source;
+        int exceeded = maxDistance + 1;
+
+        if (maxDistance < 0 || longer.length() - shorter.length() > maxDistance) {
+            return exceeded;
+        }
 
-        for (int targetIndex = 0; targetIndex <= target.length(); targetIndex++) {
-            previousRow[targetIndex] = targetIndex;
+        int blocks = Math.max(1, (shorter.length() + WORD_SIZE - 1) / WORD_SIZE);
+        if (2 * maxDistance + 1 >= WORD_SIZE * blocks) {
+            int distance = distance(shorter, longer);
+            return distance <= maxDistance ? distance : exceeded;
         }
 
-        for (int sourceIndex = 1; sourceIndex <= source.length(); sourceIndex++) {
-            currentRow[0] = sourceIndex;
-            for (int targetIndex = 1; targetIndex <= target.length(); targetIndex++) {
-                int cost = source.charAt(sourceIndex - 1) == target.charAt(targetIndex - 1) ? 0 : 1;
-                currentRow[targetIndex] = Math.min(
-                    Math.min(previousRow[targetIndex] + 1, currentRow[targetIndex - 1] + 1),
-                    previousRow[targetIndex - 1] + cost
+        return bandedDistance(WORKSPACE.get(), shorter, longer, maxDistance);
+    }
+
+    /**
+     * Token-level counterpart of {@link #boundedDistance(CharSequence, CharSequence, int)}
+     * over sequences of interned word ids.
+     */
+    public static int boundedDistance(int[] source, int[] target, int maxDistance) {
+        int[] shorter = source.length <= target.length ? source : target;
+        int[] longer = shorter == source ? target : source;
+        int exceeded = maxDistance + 1;
+
+        if (maxDistance < 0 || longer.length - shorter.length > maxDistance) {
+            return exceeded;
+        }
+
+        Workspace workspace = WORKSPACE.get();
+        int columns = longer.length;
+        int[] previousRow = workspace.previousRow(columns + 1);
+        int[] currentRow = workspace.currentRow(columns + 1);
+
+        for (int column = 0; column <= columns; column++) {
+            previousRow[column] = Math.min(column, exceeded);
+        }
+
+        for (int row = 1; row <= shorter.length; row++) {
+            currentRow[0] = Math.min(row, exceeded);
+            int rowMinimum = currentRow[0];
+            int rowToken = shorter[row - 1];
+
+            for (int column = 1; column <= columns; column++) {
+                int cost = rowToken == longer[column - 1] ? 0 : 1;
+                int value = Math.min(
+                    Math.min(previousRow[column] + 1, currentRow[column - 1] + 1),
+                    previousRow[column - 1] + cost
                 );
+                currentRow[column] = Math.min(value, exceeded);
+                rowMinimum = Math.min(rowMinimum, currentRow[column]);
             }
+
+            if (rowMinimum > maxDistance) {
+                return exceeded;
+            }
+
             int[] swap = previousRow;
             previousRow = currentRow;
             currentRow = swap;
         }
 
-        return previousRow[target.length()];
+        return previousRow[columns];
     }
 
-    public static double similarity(String source, String target) {
-        int distance = distance(source, target);
-        int maxLength = Math.max(source.length(), target.length());
+    /**
+     * Largest distance that still reaches {@code minimumSimilarity} for a pair whose longer
+     * string has {@code maxLength} characters.
+     */
+    public static int maxDistanceFor(double minimumSimilarity, int maxLength) {
+        return (int) Math.floor((1.0 - minimumSimilarity) * maxLength + SIMILARITY_EPSILON);
+    }
+
+    /**
+     * Largest distance at which any string can still reach {@code minimumSimilarity} against
+     * a query of {@code queryLength} characters. A string of length m reaches similarity s
+     * only if its distance d is at most (1 - s) * max(n, m), and m is at most n + d, which
+     * solves to d <= (1 - s) * n / s.
+     */
+    public static int maxDistanceForQuery(double minimumSimilarity, int queryLength) {
+        if (minimumSimilarity <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.floor((1.0 - minimumSimilarity) * queryLength / minimumSimilarity + SIMILARITY_EPSILON);
+    }
+
+    public static double similarityFromDistance(int distance, int maxLength) {
         return maxLength == 0 ? 1.0 : 1.0 - ((double) distance / maxLength);
     }
+
+    private static int distanceSingleWord(Workspace workspace, int patternLength, CharSequence text) {
+        long lastRowBit = 1L << (patternLength - 1);
+        long positiveVertical = -1L;
+        long negativeVertical = 0L;
+        int score = patternLength;
+
+        for (int textIndex = 0; textIndex < text.length(); textIndex++) {
+            long equal = workspace.peq[workspace.slotOf(text.charAt(textIndex))];
+            long crossVertical = equal | negativeVertical;
+            long crossHorizontal = (((equal & positiveVertical) + positiveVertical) ^ positiveVertical) | equal;
+            long positiveHorizontal = negativeVertical | ~(crossHorizontal | positiveVertical);
+            long negativeHorizontal = positiveVertical & crossHorizontal;
+
+            if ((positiveHorizontal & lastRowBit) != 0) {
+                score++;
+            } else if ((negativeHorizontal & lastRowBit) != 0) {
+                score--;
+            }
+
+            positiveHorizontal = (positiveHorizontal << 1) | 1L;
+            negativeHorizontal <<= 1;
+            positiveVertical = negativeHorizontal | ~(crossVertical | positiveHorizontal);
+            negativeVertical = positiveHorizontal & crossVertical;
+        }
+
+        return score;
+    }
+
+    /**
+     * Patterns longer than one word are split into 64-row blocks. Each column is swept
+     * top to bottom, carrying the horizontal delta out of one block into the next. Rows
+     * below the pattern in the last block never feed rows above them, so they can be
+     * left unmatched and the score is read at the pattern's last row.
+     */
+    private static int distanceBlocked(Workspace workspace, int patternLength, int blocks, CharSequence text) {
+        long[] positiveVertical = workspace.positiveVertical;
+        long[] negativeVertical = workspace.negativeVertical;
+        for (int block = 0; block < blocks; block++) {
+            positiveVertical[block] = -1L;
+            negativeVertical[block] = 0L;
+        }
+
+        int lastBlock = blocks - 1;
+        long lastRowBit = 1L << ((patternLength - 1) % WORD_SIZE);
+        int score = patternLength;
+
+        for (int textIndex = 0; textIndex < text.length(); textIndex++) {
+            int peqOffset = workspace.slotOf(text.charAt(textIndex)) * blocks;
+            int carry = 1;
+
+            for (int block = 0; block < blocks; block++) {
+                long equal = workspace.peq[peqOffset + block];
+                long pv = positiveVertical[block];
+                long mv = negativeVertical[block];
+                long carryPositive = carry > 0 ? 1L : 0L;
+                long carryNegative = carry < 0 ? 1L : 0L;
+
+                long crossVertical = equal | mv;
+                equal |= carryNegative;
+                long crossHorizontal = (((equal & pv) + pv) ^ pv) | equal;
+                long positiveHorizontal = mv | ~(crossHorizontal | pv);
+                long negativeHorizontal = pv & crossHorizontal;
+
+                if (block == lastBlock) {
+                    if ((positiveHorizontal & lastRowBit) != 0) {
+                        score++;
+                    } else if ((negativeHorizontal & lastRowBit) != 0) {
+                        score--;
+                    }
+                }
+
+                carry = (int) (positiveHorizontal >>> (WORD_SIZE - 1)) - (int) (negativeHorizontal >>> (WORD_SIZE - 1));
+                positiveHorizontal = (positiveHorizontal << 1) | carryPositive;
+                negativeHorizontal = (negativeHorizontal << 1) | carryNegative;
+
+                positiveVertical[block] = negativeHorizontal | ~(crossVertical | positiveHorizontal);
+                negativeVertical[block] = positiveHorizontal & crossVertical;
+            }
+        }
+
+        return score;
+    }
+
+    /**
+     * Ukkonen's cut-off: only cells within {@code maxDistance} of the diagonal can end at or
+     * under the cap, so everything outside the band is treated as already exceeded.
+     */
+    private static int bandedDistance(Workspace workspace, CharSequence shorter, CharSequence longer, int maxDistance) {
+        int rows = shorter.length();
+        int columns = longer.length();
+        int exceeded = maxDistance + 1;
+        int[] previousRow = workspace.previousRow(columns + 1);
+        int[] currentRow = workspace.currentRow(columns + 1);
+
+        int initialEnd = Math.min(columns, maxDistance);
+        for (int column = 0; column <= initialEnd; column++) {
+            previousRow[column] = column;
+        }
+        if (initialEnd < columns) {
+            previousRow[initialEnd + 1] = exceeded;
+        }
+
+        for (int row = 1; row <= rows; row++) {
+            int bandStart = Math.max(1, row - maxDistance);
+            int bandEnd = Math.min(columns, row + maxDistance);
+            char rowChar = shorter.charAt(row - 1);
+
+            currentRow[bandStart - 1] = bandStart == 1 && row <= maxDistance ? row : exceeded;
+            int rowMinimum = currentRow[bandStart - 1];
+
+            for (int column = bandStart; column <= bandEnd; column++) {
+                int cost = rowChar == longer.charAt(column - 1) ? 0 : 1;
+                int value = Math.min(
+                    Math.min(previousRow[column] + 1, currentRow[column - 1] + 1),
+                    previousRow[column - 1] + cost
+                );
+                value = Math.min(value, exceeded);
+                currentRow[column] = value;
+                rowMinimum = Math.min(rowMinimum, value);
+            }
+            if (bandEnd < columns) {
+                currentRow[bandEnd + 1] = exceeded;
+            }
+
+            if (rowMinimum > maxDistance) {
+                return exceeded;
+            }
+
+            int[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+
+        return Math.min(previousRow[columns], exceeded);
+    }
+
+    /**
+     * Maps pattern characters to dense slots so the match-vector table stays small. Slot 0
+     * is reserved for characters absent from the pattern and always holds zero vectors.
+     */
+    private static final class Workspace {
+        private final int[] latinSlots = new int[LATIN_RANGE];
+        private char[] extendedChars = new char[16];
+        private int[] extendedSlots = new int[16];
+        private int extendedCount;
+        private int slotCount;
+        private int blocks;
+        private long[] peq = new long[64];
+        private long[] positiveVertical = new long[4];
+        private long[] negativeVertical = new long[4];
+        private int[] previousRow = new int[128];
+        private int[] currentRow = new int[128];
+
+        void encode(CharSequence pattern, int blocks) {
+            this.blocks = blocks;
+            slotCount = 1;
+
+            int required = (pattern.length() + 1) * blocks;
+            if (peq.length < required) {
+                peq = new long[required];
+            }
+            if (positiveVertical.length < blocks) {
+                positiveVertical = new long[blocks];
+                negativeVertical = new long[blocks];
+            }
+
+            for (int patternIndex = 0; patternIndex < pattern.length(); patternIndex++) {
+                char character = pattern.charAt(patternIndex);
+                int slot = slotOf(character);
+                if (slot == 0) {
+                    slot = assignSlot(character);
+                }
+                peq[slot * blocks + patternIndex / WORD_SIZE] |= 1L << (patternIndex % WORD_SIZE);
+            }
+        }
+
+        void reset(CharSequence pattern) {
+            for (int patternIndex = 0; patternIndex < pattern.length(); patternIndex++) {
+                char character = pattern.charAt(patternIndex);
+                if (character < LATIN_RANGE) {
+                    latinSlots[character] = 0;
+                }
+            }
+            Arrays.fill(peq, 0, slotCount * blocks, 0L);
+            extendedCount = 0;
+            slotCount = 1;
+        }
+
+        int slotOf(char character) {
+            if (character < LATIN_RANGE) {
+                return latinSlots[character];
+            }
+            for (int index = 0; index < extendedCount; index++) {
+                if (extendedChars[index] == character) {
+                    return extendedSlots[index];
+                }
+            }
+            return 0;
+        }
+
+        int[] previousRow(int length) {
+            if (previousRow.length < length) {
+                previousRow = new int[length];
+            }
+            return previousRow;
+        }
+
+        int[] currentRow(int length) {
+            if (currentRow.length < length) {
+                currentRow = new int[length];
+            }
+            return currentRow;
+        }
+
+        private int assignSlot(char character) {
+            int slot = slotCount++;
+            if (character < LATIN_RANGE) {
+                latinSlots[character] = slot;
+                return slot;
+            }
+            if (extendedCount == extendedChars.length) {
+                extendedChars = Arrays.copyOf(extendedChars, extendedCount * 2);
+                extendedSlots = Arrays.copyOf(extendedSlots, extendedCount * 2);
+            }
+            extendedChars[extendedCount] = character;
+            extendedSlots[extendedCount] = slot;
+            extendedCount++;
+            return slot;
+        }
+    }
 }
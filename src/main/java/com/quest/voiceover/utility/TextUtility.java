@@ -1,10 +1,13 @@
 package com.quest.voiceover.utility;
 
+import java.util.regex.Pattern;
+
 public final class TextUtility {
 
     private static final String OSRS_COLOR_TAG_PATTERN = "<col=[^>]*>";
     private static final String OSRS_COLOR_CLOSE_TAG = "</col>";
     private static final String OSRS_LINE_BREAK = "<br>";
+    private static final Pattern PLAYER_NAME_PLACEHOLDER = Pattern.compile("\\[player(?:'s)? name\\]", Pattern.CASE_INSENSITIVE);
 
     private TextUtility() {}
 
@@ -30,6 +33,33 @@ public final class TextUtility {
         return normalizeWhitespace(stripAllTags(text));
     }
 
+    /**
+     * Canonical form used to match dialog against transcripts: lowercase letters and digits
+     * separated by single spaces. Dashes separate words like whitespace does, other
+     * punctuation (quotes and apostrophes of any style included) is dropped, and transcript
+     * player-name placeholders are removed the same way the player's name is removed from
+     * in-game text.
+     */
+    public static String normalizeForLookup(CharSequence text) {
+        String withoutPlaceholders = PLAYER_NAME_PLACEHOLDER.matcher(text).replaceAll(" ");
+        StringBuilder normalized = new StringBuilder(withoutPlaceholders.length());
+        boolean pendingSpace = false;
+
+        for (int index = 0; index < withoutPlaceholders.length(); index++) {
+            char c = withoutPlaceholders.charAt(index);
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                pendingSpace = false;
+                normalized.append(Character.toLowerCase(c));
+            } else if (Character.isWhitespace(c) || Character.getType(c) == Character.DASH_PUNCTUATION) {
+                pendingSpace = true;
+            }
+        }
+        return normalized.toString();
+    }
+
     public static String reapplyColorAfterLineBreaks(String text, String colorTag) {
         return text.replace(OSRS_LINE_BREAK, OSRS_COLOR_CLOSE_TAG + OSRS_LINE_BREAK + colorTag);
     }
@@ -0,0 +1,287 @@
+package com.quest.voiceover.modules.database;
+
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseChangesetTest {
+
+    private static final String DATABASE_PATH = "/quest_voiceover_v2.db";
+    private static final String CURRENT_VERSION = "\"1111111aaaa\"";
+    private static final String LATEST_VERSION = "\"2222222bbbb\"";
+    private static final String CHANGESET_PATH = "/changesets/1111111.json";
+
+    private static final String[][] BASE_ROWS = {
+        {"Hans", "Cook's Assistant", "a1", "Hello there."},
+        {"Hans", "Cook's Assistant", "a2", "Goodbye."},
+        {"Cook", "Cook's Assistant", "a3", "What am I to do?"},
+        {"Hans", "Cook's Assistant", "a4", "Can I help?"},
+    };
+
+    private static final String[] COLUMNS = {"character", "quest", "uri", "text"};
+    private static final String[] ACTOR_COLUMNS = {"character", "quest", "uri", "text", "actor"};
+
+    private static final String[][] LATEST_ROWS = {
+        {"Hans", "Cook's Assistant", "a1", "Hello there."},
+        {"Cook", "Cook's Assistant", "x", "Oh dear, oh dear."},
+        {"Cook", "Cook's Assistant", "a3", "What am I going to do?"},
+        {"Hans", "Cook's Assistant", "a4", "Can I help?"},
+        {"Hans", "Cook's Assistant", "y", "Farewell."},
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OkHttpClient client = new OkHttpClient();
+    private LocalHttpServer server;
+    private Path installedFile;
+
+    @Before
+    public void setUp() throws Exception {
+        server = LocalHttpServer.start();
+        installedFile = createDatabase(folder.getRoot().toPath().resolve("quest_voiceover_v2.db"), BASE_ROWS);
+
+        Path latestFile = createDatabase(folder.newFolder("published").toPath().resolve("latest.db"), LATEST_ROWS);
+        server.serve(DATABASE_PATH, 200, Files.readAllBytes(latestFile));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void appliesChangesetWithAddedRowsAtTheirPositions() throws Exception {
+        server.serve(CHANGESET_PATH, 200, changeset(CURRENT_VERSION, 5, digest(LATEST_ROWS)));
+
+        Path prepared = prepare();
+
+        assertEquals("quest_voiceover_v2.db.delta.tmp", prepared.getFileName().toString());
+        assertArrayEquals(LATEST_ROWS, readRows(prepared));
+        assertArrayEquals(BASE_ROWS, readRows(installedFile));
+        assertTrue(server.requests(DATABASE_PATH).isEmpty());
+    }
+
+    @Test
+    public void keepsColumnsTheChangesetDoesNotName() throws Exception {
+        String[][] base = withActors(BASE_ROWS);
+        String[][] latest = withActors(LATEST_ROWS);
+        latest[2][4] = "Recast";
+        createDatabase(installedFile, ACTOR_COLUMNS, base);
+        String changeset = "{"
+            + "\"from\": " + jsonString(CURRENT_VERSION) + ", "
+            + "\"to\": " + jsonString(LATEST_VERSION) + ", "
+            + "\"rowCount\": 5, "
+            + "\"digest\": \"" + digest(ACTOR_COLUMNS, latest) + "\", "
+            + "\"removed\": [\"a2\"], "
+            + "\"changed\": [{\"uri\": \"a3\", \"text\": " + jsonString(latest[2][3]) + ", \"actor\": \"Recast\"}], "
+            + "\"added\": [" + jsonRow(1, latest[1]) + ", " + jsonRow(4, latest[4]) + "]"
+            + "}";
+        server.serve(CHANGESET_PATH, 200, changeset);
+
+        Path prepared = prepare();
+
+        assertEquals("quest_voiceover_v2.db.delta.tmp", prepared.getFileName().toString());
+        assertArrayEquals(latest, readRows(prepared, ACTOR_COLUMNS));
+    }
+
+    @Test
+    public void leavesKeptRowsInPlaceWhenRowsAreOnlyAppended() throws Exception {
+        String[][] latest = {BASE_ROWS[0], BASE_ROWS[1], BASE_ROWS[2], BASE_ROWS[3], {"Hans", "Cook's Assistant", "y", "Farewell."}};
+        String changeset = "{"
+            + "\"from\": " + jsonString(CURRENT_VERSION) + ", "
+            + "\"to\": " + jsonString(LATEST_VERSION) + ", "
+            + "\"rowCount\": 5, "
+            + "\"digest\": \"" + digest(latest) + "\", "
+            + "\"removed\": [], \"changed\": [], "
+            + "\"added\": [" + jsonRow(4, latest[4]) + "]"
+            + "}";
+        server.serve(CHANGESET_PATH, 200, changeset);
+        try (Connection connection = SqliteConnections.open(installedFile);
+             Statement statement = connection.createStatement()) {
+            // Gaps in the rowids show whether the kept rows were rewritten
+            statement.execute("UPDATE dialogs SET rowid = rowid * 10");
+        }
+        List<Long> baseRowids = readRowids(installedFile);
+
+        Path prepared = prepare();
+
+        assertArrayEquals(latest, readRows(prepared));
+        assertEquals(baseRowids, readRowids(prepared).subList(0, BASE_ROWS.length));
+    }
+
+    @Test
+    public void downloadsDatabaseWhenNoChangesetIsPublished() throws Exception {
+        assertDownloaded(prepare());
+    }
+
+    @Test
+    public void downloadsDatabaseWhenChangesetIsMalformed() throws Exception {
+        server.serve(CHANGESET_PATH, 200, "{\"from\": " + jsonString(CURRENT_VERSION) + ", \"removed\": [");
+
+        assertDownloaded(prepare());
+    }
+
+    @Test
+    public void downloadsDatabaseWhenChangesetAppliesToAnotherVersion() throws Exception {
+        server.serve(CHANGESET_PATH, 200, changeset("\"0000000ffff\"", 5, digest(LATEST_ROWS)));
+
+        assertDownloaded(prepare());
+    }
+
+    @Test
+    public void downloadsDatabaseWhenRowCountDoesNotMatch() throws Exception {
+        server.serve(CHANGESET_PATH, 200, changeset(CURRENT_VERSION, 6, digest(LATEST_ROWS)));
+
+        assertDownloaded(prepare());
+        assertArrayEquals(BASE_ROWS, readRows(installedFile));
+        assertFalse(Files.exists(installedFile.resolveSibling("quest_voiceover_v2.db.delta.tmp")));
+    }
+
+    @Test
+    public void downloadsDatabaseWhenDigestDoesNotMatch() throws Exception {
+        server.serve(CHANGESET_PATH, 200, changeset(CURRENT_VERSION, 5, digest(BASE_ROWS)));
+
+        assertDownloaded(prepare());
+        assertFalse(Files.exists(installedFile.resolveSibling("quest_voiceover_v2.db.delta.tmp")));
+    }
+
+    private Path prepare() throws Exception {
+        return DatabaseVersionManager.prepareDatabaseFile(client, server.url(DATABASE_PATH), installedFile,
+            CURRENT_VERSION, LATEST_VERSION);
+    }
+
+    private void assertDownloaded(Path prepared) throws Exception {
+        assertEquals("quest_voiceover_v2.db.tmp", prepared.getFileName().toString());
+        assertArrayEquals(LATEST_ROWS, readRows(prepared));
+        assertEquals(1, server.requests(DATABASE_PATH).size());
+    }
+
+    /**
+     * Removes a2, rewords a3 and adds x and y, listed out of position order.
+     */
+    private static String changeset(String from, int rowCount, String digest) {
+        return "{"
+            + "\"from\": " + jsonString(from) + ", "
+            + "\"to\": " + jsonString(LATEST_VERSION) + ", "
+            + "\"rowCount\": " + rowCount + ", "
+            + "\"digest\": \"" + digest + "\", "
+            + "\"removed\": [\"a2\"], "
+            + "\"changed\": [" + jsonRow(null, LATEST_ROWS[2]) + "], "
+            + "\"added\": [" + jsonRow(4, LATEST_ROWS[4]) + ", " + jsonRow(1, LATEST_ROWS[1]) + "]"
+            + "}";
+    }
+
+    private static String jsonRow(Integer position, String[] row) {
+        String[] columns = row.length == ACTOR_COLUMNS.length ? ACTOR_COLUMNS : COLUMNS;
+        List<String> members = new ArrayList<>();
+        if (position != null) {
+            members.add("\"position\": " + position);
+        }
+        for (int column = 0; column < row.length; column++) {
+            members.add(jsonString(columns[column]) + ": " + jsonString(row[column]));
+        }
+        return "{" + String.join(", ", members) + "}";
+    }
+
+    /**
+     * Adds an actor column, a stand-in for authored columns the changeset rows do not list.
+     */
+    private static String[][] withActors(String[][] rows) {
+        String[][] withActors = new String[rows.length][];
+        for (int index = 0; index < rows.length; index++) {
+            withActors[index] = Arrays.copyOf(rows[index], ACTOR_COLUMNS.length);
+            withActors[index][4] = "Actor " + rows[index][2];
+        }
+        return withActors;
+    }
+
+    private static String jsonString(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private String digest(String[][] rows) throws Exception {
+        return digest(COLUMNS, rows);
+    }
+
+    private String digest(String[] columns, String[][] rows) throws Exception {
+        Path file = createDatabase(folder.newFile().toPath(), columns, rows);
+        try (Connection connection = SqliteConnections.open(file)) {
+            return DatabaseChangeset.digestRows(connection);
+        }
+    }
+
+    private static Path createDatabase(Path file, String[][] rows) throws SQLException {
+        return createDatabase(file, COLUMNS, rows);
+    }
+
+    private static Path createDatabase(Path file, String[] columns, String[][] rows) throws SQLException {
+        try (Connection connection = SqliteConnections.open(file);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS dialogs");
+            statement.execute("CREATE TABLE dialogs (" + String.join(" TEXT, ", columns) + " TEXT)");
+            String placeholders = String.join(", ", Collections.nCopies(columns.length, "?"));
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO dialogs VALUES (" + placeholders + ")")) {
+                for (String[] row : rows) {
+                    for (int column = 0; column < row.length; column++) {
+                        insert.setString(column + 1, row[column]);
+                    }
+                    insert.executeUpdate();
+                }
+            }
+        }
+        return file;
+    }
+
+    private static String[][] readRows(Path file) throws SQLException {
+        return readRows(file, COLUMNS);
+    }
+
+    private static String[][] readRows(Path file, String[] columns) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        try (Connection connection = SqliteConnections.open(file);
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT " + String.join(", ", columns) + " FROM dialogs ORDER BY rowid")) {
+            while (resultSet.next()) {
+                String[] row = new String[columns.length];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = resultSet.getString(column + 1);
+                }
+                rows.add(row);
+            }
+        }
+        return rows.toArray(new String[0][]);
+    }
+
+    private static List<Long> readRowids(Path file) throws SQLException {
+        List<Long> rowids = new ArrayList<>();
+        try (Connection connection = SqliteConnections.open(file);
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT rowid FROM dialogs ORDER BY rowid")) {
+            while (resultSet.next()) {
+                rowids.add(resultSet.getLong(1));
+            }
+        }
+        return rowids;
+    }
+}
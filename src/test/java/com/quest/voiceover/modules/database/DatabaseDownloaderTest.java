@@ -0,0 +1,255 @@
+package com.quest.voiceover.modules.database;
+
+import com.quest.voiceover.utility.HashUtility;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatabaseDownloaderTest {
+
+    private static final String DATABASE_PATH = "/quest_voiceover_v2.db";
+    private static final String COMPRESSED_PATH = DATABASE_PATH + ".gz";
+    private static final String VERSION = "\"2222222bbbb\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OkHttpClient client = new OkHttpClient();
+    private final byte[] database = new byte[256 * 1024];
+    private LocalHttpServer server;
+    private Path targetFile;
+    private Path partialVersionFile;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(database);
+        server = LocalHttpServer.start();
+        server.handle(DATABASE_PATH, exchange -> serveDatabase(exchange, VERSION));
+        targetFile = folder.getRoot().toPath().resolve("quest_voiceover_v2.db.tmp");
+        partialVersionFile = folder.getRoot().toPath().resolve("quest_voiceover_v2.db.tmp.etag");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void resumesPartialDownloadFromEarlierSession() throws Exception {
+        int resumeFrom = database.length / 3;
+        Files.write(targetFile, Arrays.copyOf(database, resumeFrom));
+        Files.writeString(partialVersionFile, VERSION);
+        publishChecksum(HashUtility.toHex(HashUtility.newSHA256Digest().digest(database)));
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertFalse(Files.exists(partialVersionFile));
+        List<Headers> requests = server.requests(DATABASE_PATH);
+        assertEquals(1, requests.size());
+        assertEquals("bytes=" + resumeFrom + "-", requests.get(0).getFirst("Range"));
+        assertEquals(VERSION, requests.get(0).getFirst("If-Range"));
+    }
+
+    @Test
+    public void resumesTransferInterruptedMidway() throws Exception {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        server.handle(DATABASE_PATH, exchange -> {
+            if (interrupted.compareAndSet(false, true)) {
+                sendTruncated(exchange, database.length / 2);
+            } else {
+                serveDatabase(exchange, VERSION);
+            }
+        });
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        List<Headers> requests = server.requests(DATABASE_PATH);
+        assertEquals(2, requests.size());
+        assertNull(requests.get(0).getFirst("Range"));
+        assertNotNull(requests.get(1).getFirst("Range"));
+        assertEquals(VERSION, requests.get(1).getFirst("If-Range"));
+    }
+
+    @Test
+    public void keepsPartialDownloadForNextSessionWhenEveryAttemptIsInterrupted() throws Exception {
+        server.handle(DATABASE_PATH, exchange -> sendTruncated(exchange, database.length / 4));
+
+        try {
+            download();
+            fail("Expected the interrupted download to fail");
+        } catch (IOException expected) {
+            // The partial file stays for the next session
+        }
+
+        assertEquals(database.length / 4, Files.size(targetFile));
+        assertEquals(VERSION, Files.readString(partialVersionFile));
+
+        server.handle(DATABASE_PATH, exchange -> serveDatabase(exchange, VERSION));
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        List<Headers> requests = server.requests(DATABASE_PATH);
+        assertEquals("bytes=" + database.length / 4 + "-", requests.get(requests.size() - 1).getFirst("Range"));
+    }
+
+    @Test
+    public void restartsWhenPartialDownloadIsFromAnotherVersion() throws Exception {
+        Files.write(targetFile, new byte[database.length / 2]);
+        Files.writeString(partialVersionFile, "\"1111111aaaa\"");
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertEquals("\"1111111aaaa\"", server.requests(DATABASE_PATH).get(0).getFirst("If-Range"));
+    }
+
+    @Test
+    public void acceptsDownloadMatchingPublishedChecksum() throws Exception {
+        publishChecksum(HashUtility.toHex(HashUtility.newSHA256Digest().digest(database)).toUpperCase());
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+    }
+
+    @Test
+    public void discardsDownloadWhenChecksumDoesNotMatch() throws Exception {
+        publishChecksum(HashUtility.toHex(HashUtility.newSHA256Digest().digest(new byte[0])));
+
+        assertFalse(download());
+
+        assertFalse(Files.exists(targetFile));
+        assertFalse(Files.exists(partialVersionFile));
+    }
+
+    @Test
+    public void prefersCompressedDatabase() throws Exception {
+        server.serve(COMPRESSED_PATH, 200, gzip(database));
+        publishChecksum(HashUtility.toHex(HashUtility.newSHA256Digest().digest(database)));
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertTrue(server.requests(DATABASE_PATH).isEmpty());
+        assertFalse(Files.exists(compressedFile()));
+    }
+
+    @Test
+    public void fallsBackToUncompressedWhenCompressedFileIsCorrupt() throws Exception {
+        server.serve(COMPRESSED_PATH, 200, Arrays.copyOf(database, 1024));
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertEquals(1, server.requests(DATABASE_PATH).size());
+        assertFalse(Files.exists(compressedFile()));
+    }
+
+    @Test
+    public void fallsBackToUncompressedWhenCompressedTransferKeepsFailing() throws Exception {
+        byte[] compressed = gzip(database);
+        server.handle(COMPRESSED_PATH, exchange -> {
+            exchange.sendResponseHeaders(200, compressed.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(compressed, 0, compressed.length / 2);
+            outputStream.flush();
+            exchange.close();
+        });
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertEquals(3, server.requests(COMPRESSED_PATH).size());
+        assertEquals(1, server.requests(DATABASE_PATH).size());
+        assertFalse(Files.exists(compressedFile()));
+    }
+
+    @Test
+    public void fallsBackToUncompressedWhenUnpackedChecksumDoesNotMatch() throws Exception {
+        server.serve(COMPRESSED_PATH, 200, gzip(new byte[1024]));
+        publishChecksum(HashUtility.toHex(HashUtility.newSHA256Digest().digest(database)));
+
+        assertTrue(download());
+
+        assertArrayEquals(database, Files.readAllBytes(targetFile));
+        assertEquals(1, server.requests(DATABASE_PATH).size());
+    }
+
+    private boolean download() throws IOException {
+        return DatabaseDownloader.download(client, server.url(DATABASE_PATH), VERSION, targetFile);
+    }
+
+    private Path compressedFile() {
+        return targetFile.resolveSibling(targetFile.getFileName() + ".gz");
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(compressed)) {
+            outputStream.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void publishChecksum(String checksum) {
+        server.serve(DATABASE_PATH + ".sha256", 200, checksum + "  quest_voiceover_v2.db\n");
+    }
+
+    /**
+     * Honours {@code Range} only while {@code If-Range} still names {@code etag}, as a static
+     * file host does.
+     */
+    private void serveDatabase(HttpExchange exchange, String etag) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        exchange.getResponseHeaders().set("ETag", etag);
+
+        if (range == null || !etag.equals(ifRange)) {
+            LocalHttpServer.respond(exchange, 200, database);
+            return;
+        }
+
+        int from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + from + "-" + (database.length - 1) + "/" + database.length);
+        LocalHttpServer.respond(exchange, 206, Arrays.copyOfRange(database, from, database.length));
+    }
+
+    /**
+     * Announces the whole file but drops the connection after {@code length} bytes.
+     */
+    private void sendTruncated(HttpExchange exchange, int length) throws IOException {
+        exchange.getResponseHeaders().set("ETag", VERSION);
+        exchange.sendResponseHeaders(200, database.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(database, 0, length);
+        outputStream.flush();
+        exchange.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.quest.voiceover.modules.database;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stands in for the database host in tests. Paths without a handler answer 404, and the
+ * request headers of every exchange are kept per path.
+ */
+final class LocalHttpServer implements Closeable {
+
+    private final HttpServer server;
+    private final Map<String, HttpHandler> handlers = new ConcurrentHashMap<>();
+    private final Map<String, List<Headers>> requests = new ConcurrentHashMap<>();
+
+    private LocalHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    static LocalHttpServer start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        LocalHttpServer localServer = new LocalHttpServer(server);
+        server.createContext("/", localServer::dispatch);
+        server.start();
+        return localServer;
+    }
+
+    void handle(String path, HttpHandler handler) {
+        handlers.put(path, handler);
+    }
+
+    void serve(String path, int status, byte[] body) {
+        handle(path, exchange -> respond(exchange, status, body));
+    }
+
+    void serve(String path, int status, String body) {
+        serve(path, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    HttpUrl url(String path) {
+        InetSocketAddress address = server.getAddress();
+        return new HttpUrl.Builder()
+            .scheme("http")
+            .host(address.getHostString())
+            .port(address.getPort())
+            .encodedPath(path)
+            .build();
+    }
+
+    List<Headers> requests(String path) {
+        return requests.getOrDefault(path, List.of());
+    }
+
+    static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.computeIfAbsent(path, key -> new CopyOnWriteArrayList<>()).add(exchange.getRequestHeaders());
+
+        HttpHandler handler = handlers.get(path);
+        if (handler == null) {
+            respond(exchange, 404, new byte[0]);
+        } else {
+            handler.handle(exchange);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
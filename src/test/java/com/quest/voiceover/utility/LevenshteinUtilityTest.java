@@ -0,0 +1,250 @@
+package com.quest.voiceover.utility;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LevenshteinUtilityTest {
+
+    private static final int[] LENGTHS = {0, 1, 2, 31, 63, 64, 65, 127, 128, 129, 200};
+
+    /**
+     * Mixes Latin, characters above the Latin table and a surrogate pair, so both slot
+     * lookups and non-BMP text are exercised.
+     */
+    private static final String ALPHABET = "abcde ÿĀ中é" + new String(Character.toChars(0x1F600));
+
+    private final Random random = new Random(20240601);
+
+    @Test
+    public void distanceMatchesReferenceAcrossBlockBoundaries() {
+        for (int sourceLength : LENGTHS) {
+            for (int targetLength : LENGTHS) {
+                for (int trial = 0; trial < 5; trial++) {
+                    String source = randomText(sourceLength);
+                    String target = randomText(targetLength);
+                    assertDistance(source, target);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void distanceMatchesReferenceForNearbyStrings() {
+        for (int length : LENGTHS) {
+            for (int trial = 0; trial < 20; trial++) {
+                String source = randomText(length);
+                assertDistance(source, mutate(source, random.nextInt(6)));
+            }
+        }
+    }
+
+    @Test
+    public void distanceHandlesSurrogatePairsAsSeparateCharacters() {
+        String face = new String(Character.toChars(0x1F600));
+        String other = new String(Character.toChars(0x1F601));
+
+        assertEquals(1, LevenshteinUtility.distance(face, other));
+        assertEquals(2, LevenshteinUtility.distance("", face));
+        assertDistance(repeat(face, 40), repeat(other, 40));
+    }
+
+    @Test
+    public void similarityMatchesReference() {
+        for (int trial = 0; trial < 200; trial++) {
+            String source = randomText(random.nextInt(150));
+            String target = mutate(source, random.nextInt(10));
+            assertEquals(referenceSimilarity(source, target), LevenshteinUtility.similarity(source, target), 1e-12);
+        }
+        assertEquals(1.0, LevenshteinUtility.similarity("", ""), 0.0);
+    }
+
+    @Test
+    public void boundedDistanceMatchesCappedReference() {
+        for (int length : LENGTHS) {
+            for (int trial = 0; trial < 10; trial++) {
+                String source = randomText(length);
+                String target = trial % 2 == 0 ? mutate(source, random.nextInt(8)) : randomText(random.nextInt(length + 5));
+                int expected = referenceDistance(source, target);
+
+                for (int maxDistance : new int[]{-1, 0, 1, 2, 5, 31, 32, 100, expected - 1, expected, expected + 1}) {
+                    int capped = expected <= maxDistance ? expected : maxDistance + 1;
+                    assertEquals(source + " / " + target + " capped at " + maxDistance,
+                        capped, LevenshteinUtility.boundedDistance(source, target, maxDistance));
+                    assertEquals(capped, LevenshteinUtility.boundedDistance(target, source, maxDistance));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boundedDistanceRejectsLengthGapWithoutScoring() {
+        assertEquals(3, LevenshteinUtility.boundedDistance("abc", "abcdefgh", 2));
+        assertEquals(0, LevenshteinUtility.boundedDistance("abc", "abc", -1));
+        assertEquals(1, LevenshteinUtility.boundedDistance("", "a", 0));
+        assertEquals(0, LevenshteinUtility.boundedDistance("", "", 0));
+    }
+
+    @Test
+    public void bandedDistanceAbandonsRowsPastTheCap() {
+        String source = repeat("a", 100);
+        String target = repeat("b", 100);
+
+        assertEquals(4, LevenshteinUtility.boundedDistance(source, target, 3));
+        assertEquals(100, LevenshteinUtility.boundedDistance(source, target, 100));
+    }
+
+    @Test
+    public void tokenBoundedDistanceMatchesCappedReference() {
+        for (int trial = 0; trial < 300; trial++) {
+            int[] source = randomTokens(random.nextInt(20));
+            int[] target = trial % 2 == 0 ? mutateTokens(source, random.nextInt(5)) : randomTokens(random.nextInt(20));
+            int expected = referenceDistance(source, target);
+
+            for (int maxDistance : new int[]{-1, 0, 1, 3, 20, expected - 1, expected, expected + 1}) {
+                int capped = expected <= maxDistance ? expected : maxDistance + 1;
+                assertEquals(capped, LevenshteinUtility.boundedDistance(source, target, maxDistance));
+                assertEquals(capped, LevenshteinUtility.boundedDistance(target, source, maxDistance));
+            }
+        }
+    }
+
+    @Test
+    public void maxDistanceForIsTheLargestDistanceReachingTheThreshold() {
+        assertEquals(2, LevenshteinUtility.maxDistanceFor(0.8, 10));
+        assertEquals(0, LevenshteinUtility.maxDistanceFor(1.0, 50));
+        assertEquals(7, LevenshteinUtility.maxDistanceFor(0.0, 7));
+        assertEquals(0, LevenshteinUtility.maxDistanceFor(0.8, 0));
+
+        for (double threshold : new double[]{0.5, 0.7, 0.8, 0.85, 0.9, 0.95, 0.99}) {
+            for (int maxLength = 1; maxLength <= 300; maxLength++) {
+                int maxDistance = LevenshteinUtility.maxDistanceFor(threshold, maxLength);
+                assertTrue(LevenshteinUtility.similarityFromDistance(maxDistance, maxLength) >= threshold - 1e-9);
+                assertTrue(LevenshteinUtility.similarityFromDistance(maxDistance + 1, maxLength) < threshold - 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void maxDistanceForQueryBoundsEveryCandidateLength() {
+        assertEquals(Integer.MAX_VALUE, LevenshteinUtility.maxDistanceForQuery(0.0, 10));
+        assertEquals(Integer.MAX_VALUE, LevenshteinUtility.maxDistanceForQuery(-0.5, 10));
+
+        for (double threshold : new double[]{0.5, 0.8, 0.9}) {
+            for (int queryLength = 0; queryLength <= 200; queryLength++) {
+                int bound = LevenshteinUtility.maxDistanceForQuery(threshold, queryLength);
+                for (int candidateLength = 0; candidateLength <= 3 * queryLength + 5; candidateLength++) {
+                    int maxLength = Math.max(queryLength, candidateLength);
+                    int reachable = Math.min(LevenshteinUtility.maxDistanceFor(threshold, maxLength),
+                        Math.max(queryLength, candidateLength));
+                    if (reachable >= Math.abs(queryLength - candidateLength)) {
+                        assertTrue(reachable <= bound);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertDistance(String source, String target) {
+        int expected = referenceDistance(source, target);
+        assertEquals(source + " / " + target, expected, LevenshteinUtility.distance(source, target));
+        assertEquals(expected, LevenshteinUtility.distance(target, source));
+    }
+
+    private String randomText(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            int index = random.nextInt(ALPHABET.length());
+            char character = ALPHABET.charAt(index);
+            if (Character.isHighSurrogate(character) && builder.length() + 1 < length) {
+                builder.append(character).append(ALPHABET.charAt(index + 1));
+            } else if (!Character.isSurrogate(character)) {
+                builder.append(character);
+            }
+        }
+        return builder.toString();
+    }
+
+    private String mutate(String text, int edits) {
+        StringBuilder builder = new StringBuilder(text);
+        for (int edit = 0; edit < edits; edit++) {
+            int operation = builder.length() == 0 ? 0 : random.nextInt(3);
+            int position = random.nextInt(builder.length() + (operation == 0 ? 1 : 0));
+            char character = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            if (operation == 0) {
+                builder.insert(position, character);
+            } else if (operation == 1) {
+                builder.deleteCharAt(position);
+            } else {
+                builder.setCharAt(position, character);
+            }
+        }
+        return builder.toString();
+    }
+
+    private int[] randomTokens(int length) {
+        int[] tokens = new int[length];
+        for (int index = 0; index < length; index++) {
+            tokens[index] = random.nextInt(6);
+        }
+        return tokens;
+    }
+
+    private int[] mutateTokens(int[] tokens, int edits) {
+        int[] mutated = tokens.clone();
+        for (int edit = 0; edit < edits && mutated.length > 0; edit++) {
+            mutated[random.nextInt(mutated.length)] = random.nextInt(6);
+        }
+        return mutated;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int index = 0; index < count; index++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    private static double referenceSimilarity(String source, String target) {
+        int maxLength = Math.max(source.length(), target.length());
+        return maxLength == 0 ? 1.0 : 1.0 - ((double) referenceDistance(source, target) / maxLength);
+    }
+
+    /**
+     * The full dynamic-programming distance the bit-parallel kernel replaced.
+     */
+    private static int referenceDistance(String source, String target) {
+        int[] sourceChars = source.chars().toArray();
+        int[] targetChars = target.chars().toArray();
+        return referenceDistance(sourceChars, targetChars);
+    }
+
+    private static int referenceDistance(int[] source, int[] target) {
+        int[] previousRow = new int[target.length + 1];
+        int[] currentRow = new int[target.length + 1];
+
+        for (int targetIndex = 0; targetIndex <= target.length; targetIndex++) {
+            previousRow[targetIndex] = targetIndex;
+        }
+
+        for (int sourceIndex = 1; sourceIndex <= source.length; sourceIndex++) {
+            currentRow[0] = sourceIndex;
+            for (int targetIndex = 1; targetIndex <= target.length; targetIndex++) {
+                int cost = source[sourceIndex - 1] == target[targetIndex - 1] ? 0 : 1;
+                currentRow[targetIndex] = Math.min(
+                    Math.min(previousRow[targetIndex] + 1, currentRow[targetIndex - 1] + 1),
+                    previousRow[targetIndex - 1] + cost
+                );
+            }
+            int[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+
+        return previousRow[target.length];
+    }
+}